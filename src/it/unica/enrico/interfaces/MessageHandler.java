@@ -0,0 +1,10 @@
+package it.unica.enrico.interfaces;
+
+import it.unica.enrico.models.Data;
+
+public interface MessageHandler {
+
+    /** Handle one message of the type it was registered for, 'bytes' is the whole message, envelope included **/
+    void onMessage (Data data, byte[] bytes);
+
+}
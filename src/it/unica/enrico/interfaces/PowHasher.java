@@ -0,0 +1,11 @@
+package it.unica.enrico.interfaces;
+
+public interface PowHasher {
+
+    /** Prepare to hash 'sha256 || nonce' for the given block hash **/
+    void init(byte[] sha256);
+
+    /** Write sha256d(sha256 || nonce) at output[offset, offset+32) **/
+    void hash(int nonce, byte[] output, int offset);
+
+}
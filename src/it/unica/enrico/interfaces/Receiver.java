@@ -9,6 +9,12 @@ public interface Receiver {
 
     boolean isReady();
 
+    /** Block until the runnable is ready, or has failed to start. Returns isReady() **/
+    boolean awaitReady() throws InterruptedException;
+
+    /** Ask the runnable to stop, it returns from run() shortly after **/
+    void shutdown();
+
     String getHost();
 
     int getPort();
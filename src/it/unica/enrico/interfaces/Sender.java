@@ -8,4 +8,10 @@ public interface Sender {
     Queue<Data> getQueue();
 
     boolean isReady();
+
+    /** Block until the runnable is ready, or has failed to start. Returns isReady() **/
+    boolean awaitReady() throws InterruptedException;
+
+    /** Ask the runnable to stop, it returns from run() shortly after **/
+    void shutdown();
 }
\ No newline at end of file
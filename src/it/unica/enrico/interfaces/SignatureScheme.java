@@ -0,0 +1,29 @@
+package it.unica.enrico.interfaces;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+
+public interface SignatureScheme {
+
+    /** Id sent along with the public keys, the same on every node **/
+    byte getId();
+
+    String getName();
+
+    KeyPair generateKeyPair();
+
+    /** A signer for 'privateKey', not thread safe **/
+    Signature newSigner(PrivateKey privateKey);
+
+    /** Decode a PKCS#8 encoded private key of this scheme, null if it is not a valid one **/
+    PrivateKey decodePrivateKey(byte[] encoded);
+
+    /** Decode an X.509 encoded public key of this scheme, null if it is not a valid one. Thread safe **/
+    PublicKey decodePublicKey(byte[] encoded);
+
+    /** Verify the signature of 'bytes' with 'key', a key decoded by this scheme. Thread safe **/
+    boolean verify(PublicKey key, byte[] signature, byte[] bytes);
+
+}
@@ -0,0 +1,153 @@
+package it.unica.enrico.models;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* saldo di ogni indirizzo, aggiornato ad ogni blocco aggiunto alla blockchain.
+   La lettura di un saldo non prende lock; la lettura di più saldi usa un contatore di versione (seqlock)
+   per restituire saldi tutti riferiti allo stesso blocco */
+public class BalanceIndex {
+
+    private static final int COUNT_LENGTH = 4;
+    private static final int NAME_LENGTH = 4;
+    private static final int BALANCE_LENGTH = 8;
+
+    private final Map<String, AtomicLong>   balances = new ConcurrentHashMap<String, AtomicLong>();
+    // odd while a block is being applied
+    private volatile long                   version = 0;
+
+    /** Balance of 'name', 0 for an unknown address **/
+    public long getBalance(String name) {
+        final AtomicLong balance = balances.get(name);
+        return (balance == null) ? 0 : balance.get();
+    }
+
+    /** Balances of all the 'names', all taken after the same block **/
+    public Map<String, Long> getBalances(Collection<String> names) {
+        final Map<String, Long> result = new HashMap<String, Long>();
+        while (true) {
+            final long before = version;
+            if ((before & 1) == 0) {
+                for (String name : names)
+                    result.put(name, getBalance(name));
+                if (version == before)
+                    return result;
+                result.clear();
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /** Add the effect of 'block' to the balances **/
+    public synchronized void apply(Block block) {
+        version++;
+        try {
+            for (Transaction transaction : block.getTransazioni())
+                apply(transaction, balances);
+        } finally {
+            version++;
+        }
+    }
+
+    /**
+     * Recompute the balances from scratch by walking the whole chain, and replace the index with the result.
+     * Returns true if the index already held the same balances.
+     */
+    public synchronized boolean rebuild(Blockchain blockchain) {
+        final Map<String, AtomicLong> scanned = new HashMap<String, AtomicLong>();
+        final int length = blockchain.getLength();
+        for (int i=0; i<length; i++) {
+            for (Transaction transaction : blockchain.getBlock(i).getTransazioni())
+                apply(transaction, scanned);
+        }
+
+        boolean same = true;
+        for (Map.Entry<String, AtomicLong> entry : scanned.entrySet()) {
+            if (getBalance(entry.getKey()) != entry.getValue().get())
+                same = false;
+        }
+        for (Map.Entry<String, AtomicLong> entry : balances.entrySet()) {
+            if (entry.getValue().get() != 0 && !scanned.containsKey(entry.getKey()))
+                same = false;
+        }
+        if (same)
+            return true;
+
+        version++;
+        try {
+            balances.clear();
+            balances.putAll(scanned);
+        } finally {
+            version++;
+        }
+        return false;
+    }
+
+    /** Bytes {@link #toBuffer(ByteBuffer)} writes **/
+    public synchronized int getBufferLength() {
+        int length = COUNT_LENGTH;
+        for (String name : balances.keySet())
+            length += NAME_LENGTH + name.getBytes().length + BALANCE_LENGTH;
+        return length;
+    }
+
+    /** Write every balance **/
+    public synchronized void toBuffer(ByteBuffer buffer) {
+        buffer.putInt(balances.size());
+        for (Map.Entry<String, AtomicLong> entry : balances.entrySet()) {
+            final byte[] name = entry.getKey().getBytes();
+            buffer.putInt(name.length);
+            buffer.put(name);
+            buffer.putLong(entry.getValue().get());
+        }
+    }
+
+    public synchronized void clear() {
+        version++;
+        try {
+            balances.clear();
+        } finally {
+            version++;
+        }
+    }
+
+    /** Replace the balances with the ones written by {@link #toBuffer(ByteBuffer)} **/
+    public synchronized void fromBuffer(ByteBuffer buffer) {
+        final Map<String, AtomicLong> read = new HashMap<String, AtomicLong>();
+        final int size = buffer.getInt();
+        for (int i=0; i<size; i++) {
+            final byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            read.put(new String(name), new AtomicLong(buffer.getLong()));
+        }
+        version++;
+        try {
+            balances.clear();
+            balances.putAll(read);
+        } finally {
+            version++;
+        }
+    }
+
+    private static void apply(Transaction transaction, Map<String, AtomicLong> balances) {
+        // the inputs are spent
+        for (Transaction c : transaction.inputs)
+            getOrCreate(balances, c.getDestinatario()).addAndGet(-c.getValore());
+        // the outputs are received
+        for (Transaction c : transaction.outputs)
+            getOrCreate(balances, c.getDestinatario()).addAndGet(c.getValore());
+    }
+
+    private static AtomicLong getOrCreate(Map<String, AtomicLong> balances, String name) {
+        AtomicLong balance = balances.get(name);
+        if (balance == null) {
+            balance = new AtomicLong();
+            balances.put(name, balance);
+        }
+        return balance;
+    }
+}
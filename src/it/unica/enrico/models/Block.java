@@ -12,15 +12,17 @@ public class Block {
     private static final int FROM_LENGTH = 4;
     private static final int BOOLEAN_LENGTH = 2;
     private static final int NUM_OF_ZEROS_LENGTH = 4;
-    private static final int NONCE_LENGTH = 4;
+    private static final int NONCE_LENGTH = 8;
+    private static final int TIMESTAMP_LENGTH = 8;
     private static final int BLOCK_LENGTH = 4;
     private static final int LENGTH_LENGTH = 4;
 
     private String provenienza;         //chi ha caricato il nodo sulla blockchain
     private Boolean bloccoConf=false;   //valore booleano che rapprensenta se il blocco è confermato o no, quindi valido o no
     private int numeroDiZeri;           //numero di zeri contenuti nell'hash del blocco quindi indica la difficoltà mining
-    private int nonce;                  //numero random/pseudo random utilizzato per la generazione dell'hash del blocco
+    private long nonce;                 //numero random/pseudo random utilizzato per la generazione dell'hash del blocco (extra nonce nei 32 bit alti)
     private int dimensione;             //indica la dimensione del blocco
+    private long timestamp;             //quando il blocco è stato minato, unix(millisecondi), usato per il retarget della difficoltà
     int indice;                         //posizione del blocco nella blockchain
     private Transaction[] transazioni;  //Array delle transazioni contenute nel blocco
     public byte[] hashBloccoPrecedente;
@@ -60,14 +62,22 @@ public class Block {
         this.numeroDiZeri = numeroDiZeri;
     }
 
-    public int getNonce () {
+    public long getNonce () {
         return nonce;
     }
 
-    public void setNonce (int nonce) {
+    public void setNonce (long nonce) {
         this.nonce = nonce;
     }
 
+    public long getTimestamp () {
+        return timestamp;
+    }
+
+    public void setTimestamp (long timestamp) {
+        this.timestamp = timestamp;
+    }
+
     public int getDimensione () {
         return dimensione;
     }
@@ -108,6 +118,16 @@ public class Block {
         this.hash = hash;
     }
 
+    /** Hash su cui si calcola la proof of work: l'hash del blocco e il timestamp, così il timestamp non può cambiare dopo il mining **/
+    public byte[] getPowHash() {
+        final ByteBuffer buffer = ByteBuffer.allocate(hash.length + TIMESTAMP_LENGTH);
+        buffer.put(hash);
+        buffer.putLong(timestamp);
+        final byte[] powHash = new byte[HashUtils.Sha256d.DIGEST_LENGTH];
+        HashUtils.getSha256d().digest(buffer.array(), 0, buffer.capacity(), powHash, 0);
+        return powHash;
+    }
+
     public int getBufferLength() {
         int transactionsLength = 0;
         for (Transaction t : transazioni)
@@ -116,6 +136,7 @@ public class Block {
                 BOOLEAN_LENGTH +
                 NUM_OF_ZEROS_LENGTH +
                 NONCE_LENGTH +
+                TIMESTAMP_LENGTH +
                 BLOCK_LENGTH +
                 LENGTH_LENGTH + hashBloccoPrecedente.length +
                 LENGTH_LENGTH + hash.length +
@@ -130,7 +151,8 @@ public class Block {
 
         buffer.putChar(getBoolean(bloccoConf));
         buffer.putInt(numeroDiZeri);
-        buffer.putInt(nonce);
+        buffer.putLong(nonce);
+        buffer.putLong(timestamp);
         buffer.putInt(dimensione);
 
         buffer.putInt(hashBloccoPrecedente.length);
@@ -154,7 +176,8 @@ public class Block {
 
         bloccoConf = parseBoolean(buffer.getChar());
         numeroDiZeri = buffer.getInt();
-        nonce = buffer.getInt();
+        nonce = buffer.getLong();
+        timestamp = buffer.getLong();
         dimensione = buffer.getInt();
 
         { // previous hash
@@ -171,15 +194,8 @@ public class Block {
 
         int tLength = buffer.getInt();
         transazioni =  new Transaction[tLength];
-        for (int i=0; i < tLength; i++) {
-            int length = buffer.getInt();
-            final byte[] bytes = new byte[length];
-            buffer.get(bytes);
-            final ByteBuffer bb = ByteBuffer.wrap(bytes);
-            final Transaction t = new Transaction();
-            t.fromBuffer(bb);
-            transazioni[i] = t;
-        }
+        for (int i=0; i < tLength; i++)
+            transazioni[i] = Transaction.fromSlice(buffer);
     }
 
     private static final char getBoolean(boolean bool) {
@@ -199,7 +215,8 @@ public class Block {
         hashCode += provenienza.length();
         if (bloccoConf)
             hashCode += 1;
-        hashCode += nonce;
+        hashCode += (int) (nonce ^ (nonce >>> 32));
+        hashCode += (int) (timestamp ^ (timestamp >>> 32));
         hashCode += dimensione;
         hashCode += numeroDiZeri;
         hashCode += transazioni.length;
@@ -226,6 +243,8 @@ public class Block {
             return false;
         if (nonce != c.nonce)
             return false;
+        if (timestamp != c.timestamp)
+            return false;
         if (dimensione != c.dimensione)
             return false;
         if (numeroDiZeri != c.numeroDiZeri)
@@ -254,6 +273,7 @@ public class Block {
         builder.append("Blocco valido: ").append(bloccoConf).append("\n");
         builder.append("Numero di Zeri: ").append(numeroDiZeri).append("\n");
         builder.append("Nonce utilizzato: ").append(nonce).append("\n");
+        builder.append("Timestamp: ").append(timestamp).append("\n");
         builder.append("Dimensione blocco: ").append(dimensione).append("\n");
         builder.append("Hash precedente: ").append(HashUtils.bytesToHex(hashBloccoPrecedente));
         builder.append("Hash: ").append(HashUtils.bytesToHex(hash));
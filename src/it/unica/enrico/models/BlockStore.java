@@ -0,0 +1,290 @@
+package it.unica.enrico.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/* archivio append-only dei blocchi: i blocchi serializzati (Block.toBuffer) vengono aggiunti in file segmento
+   mappati in memoria, un indice altezza -> (segmento, offset) anch'esso mappato permette di leggere un blocco
+   senza tenere la blockchain nello heap. Ogni record porta il CRC32 del blocco: alla riapertura i blocchi in coda
+   scritti solo in parte da un crash vengono scartati. Accanto all'indice un checkpoint dello stato (UTXO e saldi)
+   evita di rileggere tutta la catena ad ogni riavvio */
+public class BlockStore {
+
+    private static final boolean DEBUG = Boolean.getBoolean("debug");
+    private static final String INDEX_FILE = "index.dat";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String CHECKPOINT_FILE = "checkpoint.dat";
+    // force every append to disk before it returns, else the OS writes the pages back when it likes and a crash
+    // may lose the latest blocks (never expose a partial one)
+    private static final boolean SYNC = Boolean.parseBoolean(System.getProperty("block_store_sync", "true"));
+    // size of a segment file, a block bigger than this gets a segment of its own
+    private static final int SEGMENT_SIZE = Integer.getInteger("block_segment_size", 64*1024*1024);
+    // index layout: [count][entry 0][entry 1]... every entry is (segment << 32 | offset)
+    private static final int COUNT_LENGTH = 8;
+    private static final int ENTRY_LENGTH = 8;
+    private static final int INDEX_GROWTH = 64*1024;    // entries
+    // record layout: [length][crc32 of the block][block]
+    private static final int LENGTH_LENGTH = 4;
+    private static final int CRC_LENGTH = 4;
+    private static final int RECORD_HEADER = LENGTH_LENGTH + CRC_LENGTH;
+
+    private final File                              directory;
+    private final RandomAccessFile                  indexFile;
+    private final List<RandomAccessFile>            segmentFiles    = new CopyOnWriteArrayList<RandomAccessFile>();
+    private final List<MappedByteBuffer>            segments        = new CopyOnWriteArrayList<MappedByteBuffer>();
+
+    private volatile MappedByteBuffer               index;
+    private volatile int                            count;
+    private int                                     position;       // next free byte in the last segment
+
+    public BlockStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create "+directory);
+
+        indexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+        final long indexLength = Math.max(indexFile.length(), COUNT_LENGTH + ((long) INDEX_GROWTH * ENTRY_LENGTH));
+        index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexLength);
+        count = (int) Math.max(0, Math.min(index.getLong(0), (index.capacity() - COUNT_LENGTH) / ENTRY_LENGTH));
+
+        // existing segments are mapped with their size on disk
+        for (int i=0; ; i++) {
+            final File file = getSegmentFile(i);
+            if (!file.exists())
+                break;
+            final RandomAccessFile segment = new RandomAccessFile(file, "rw");
+            segmentFiles.add(segment);
+            segments.add(segment.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segment.length()));
+        }
+
+        // the blocks up to the checkpoint were forced with it, a crash may have left the ones after it partially
+        // written (all of them without 'block_store_sync', else the last one), keep them up to the first bad one
+        final long stored = count;
+        int valid = Math.max(0, getCheckpointHeight());
+        while (valid < count && isValid(valid))
+            valid++;
+        count = valid;
+        if (count != stored) {
+            System.err.println("Block store "+directory+" dropped "+(stored - count)+" partially written blocks.");
+            index.putLong(0, count);
+            index.force();
+        }
+
+        int segment = 0;
+        if (count > 0) {
+            final long last = getEntry(count - 1);
+            final int offset = (int) last;
+            segment = (int) (last >>> 32);
+            position = offset + RECORD_HEADER + segments.get(segment).getInt(offset);
+        } else {
+            position = 0;
+        }
+        // drop segments which were created but never indexed
+        while (segments.size() > segment + 1) {
+            segments.remove(segments.size() - 1);
+            segmentFiles.remove(segmentFiles.size() - 1).close();
+            getSegmentFile(segments.size()).delete();
+        }
+
+        if (DEBUG)
+            System.out.println("Opened block store "+directory+". blocks="+count+" segments="+segments.size());
+    }
+
+    /** Number of stored blocks **/
+    public int size() {
+        return count;
+    }
+
+    /** Decode the block at 'height', or null if there is no such block **/
+    public Block get(int height) {
+        if (height < 0 || height >= count)
+            return null;
+        final long entry = getEntry(height);
+        final int offset = (int) entry;
+
+        final ByteBuffer view = segments.get((int) (entry >>> 32)).duplicate();
+        final int length = view.getInt(offset);
+        view.limit(offset + RECORD_HEADER + length);
+        view.position(offset + RECORD_HEADER);
+
+        final Block block = new Block();
+        block.fromBuffer(view.slice());
+        return block;
+    }
+
+    /** Append the block at height size() **/
+    public synchronized void append(Block block) throws IOException {
+        final int length = block.getBufferLength();
+        final int recordLength = RECORD_HEADER + length;
+
+        if (segments.isEmpty() || position + recordLength > segments.get(segments.size() - 1).capacity())
+            newSegment(recordLength);
+        final int segment = segments.size() - 1;
+        final int offset = position;
+
+        // record, index entry and count are forced together, the CRC and the entry chain let the constructor
+        // find a block whose pages did not all reach the disk
+        final MappedByteBuffer mapped = segments.get(segment);
+        final ByteBuffer buffer = mapped.duplicate();
+        buffer.position(offset + RECORD_HEADER);
+        block.toBuffer(buffer);
+        buffer.position(offset + RECORD_HEADER);
+        buffer.limit(offset + recordLength);
+        mapped.putInt(offset, length);
+        mapped.putInt(offset + LENGTH_LENGTH, crc(buffer));
+        position = offset + recordLength;
+
+        final int height = count;
+        final long entryPosition = COUNT_LENGTH + ((long) height * ENTRY_LENGTH);
+        if (entryPosition + ENTRY_LENGTH > index.capacity())
+            index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, index.capacity() + ((long) INDEX_GROWTH * ENTRY_LENGTH));
+        index.putLong((int) entryPosition, (((long) segment) << 32) | (offset & 0xffffffffL));
+        index.putLong(0, height + 1);
+        if (SYNC) {
+            mapped.force();
+            index.force();
+        }
+        count = height + 1;
+    }
+
+    /** Flush the mapped files and close them **/
+    public synchronized void close() throws IOException {
+        index.force();
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+        indexFile.close();
+        for (RandomAccessFile segment : segmentFiles)
+            segment.close();
+    }
+
+    /**
+     * Save 'state', which holds what the first 'height' blocks add up to. The blocks are forced first so the
+     * checkpoint is never ahead of the store, the file is replaced by a rename so a crash leaves the old one.
+     */
+    public synchronized void saveCheckpoint(int height, ByteBuffer state) throws IOException {
+        index.force();
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+
+        final File tmp = new File(directory, CHECKPOINT_FILE+".tmp");
+        final RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(COUNT_LENGTH + CRC_LENGTH);
+            header.putLong(height);
+            header.putInt(crc(state.duplicate()));
+            header.flip();
+            file.setLength(0);
+            file.getChannel().write(new ByteBuffer[] { header, state.duplicate() });
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!tmp.renameTo(new File(directory, CHECKPOINT_FILE)))
+            throw new IOException("Cannot rename "+tmp);
+    }
+
+    /** Height of the saved checkpoint, or -1 if there is none this store can use **/
+    public int getCheckpointHeight() {
+        final ByteBuffer checkpoint = readCheckpoint();
+        return (checkpoint == null) ? -1 : (int) checkpoint.getLong(0);
+    }
+
+    /** The state saved by {@link #saveCheckpoint(int, ByteBuffer)}, or null if there is none this store can use **/
+    public ByteBuffer getCheckpoint() {
+        final ByteBuffer checkpoint = readCheckpoint();
+        if (checkpoint == null)
+            return null;
+        checkpoint.position(COUNT_LENGTH + CRC_LENGTH);
+        return checkpoint.slice();
+    }
+
+    private ByteBuffer readCheckpoint() {
+        final File file = new File(directory, CHECKPOINT_FILE);
+        if (!file.isFile() || file.length() < COUNT_LENGTH + CRC_LENGTH || file.length() > Integer.MAX_VALUE)
+            return null;
+        try {
+            final RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                final byte[] bytes = new byte[(int) in.length()];
+                in.readFully(bytes);
+                final ByteBuffer checkpoint = ByteBuffer.wrap(bytes);
+                final long height = checkpoint.getLong();
+                final int crc = checkpoint.getInt();
+                // a checkpoint past the stored blocks belongs to blocks a crash dropped
+                if (height < 0 || height > count || crc != crc(checkpoint.slice()))
+                    return null;
+                return checkpoint;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read the checkpoint of "+directory+". "+e);
+            return null;
+        }
+    }
+
+    /**
+     * True if the block at 'height' is whole: its entry follows the previous record, and its bytes match their CRC
+     */
+    private boolean isValid(int height) {
+        final long entry = getEntry(height);
+        final int segment = (int) (entry >>> 32);
+        final int offset = (int) entry;
+        if (height == 0) {
+            if (entry != 0)
+                return false;
+        } else {
+            final long previous = getEntry(height - 1);
+            final int previousSegment = (int) (previous >>> 32);
+            final int previousOffset = (int) previous;
+            if (previousSegment < 0 || previousSegment >= segments.size())
+                return false;
+            final int end = previousOffset + RECORD_HEADER + segments.get(previousSegment).getInt(previousOffset);
+            if (!((segment == previousSegment && offset == end) || (segment == previousSegment + 1 && offset == 0)))
+                return false;
+        }
+        if (segment < 0 || segment >= segments.size())
+            return false;
+        final MappedByteBuffer mapped = segments.get(segment);
+        if (offset < 0 || offset + RECORD_HEADER > mapped.capacity())
+            return false;
+        final int length = mapped.getInt(offset);
+        if (length < 0 || length > mapped.capacity() - offset - RECORD_HEADER)
+            return false;
+        final ByteBuffer view = mapped.duplicate();
+        view.position(offset + RECORD_HEADER);
+        view.limit(offset + RECORD_HEADER + length);
+        return mapped.getInt(offset + LENGTH_LENGTH) == crc(view);
+    }
+
+    private static int crc(ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return (int) crc.getValue();
+    }
+
+    private long getEntry(int height) {
+        return index.getLong(COUNT_LENGTH + (height * ENTRY_LENGTH));
+    }
+
+    private void newSegment(int recordLength) throws IOException {
+        final int segment = segments.size();
+        final RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment), "rw");
+        final int size = Math.max(SEGMENT_SIZE, recordLength);
+        segmentFiles.add(file);
+        segments.add(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+        position = 0;
+    }
+
+    private File getSegmentFile(int segment) {
+        return new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+}
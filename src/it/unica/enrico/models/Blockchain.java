@@ -1,39 +1,53 @@
 package it.unica.enrico.models;
 
+import it.unica.enrico.interfaces.SignatureScheme;
+import it.unica.enrico.utils.AppendOnlyList;
 import it.unica.enrico.utils.Constants;
+import it.unica.enrico.utils.DifficultyTarget;
 import it.unica.enrico.utils.HashUtils;
+import it.unica.enrico.utils.KeyFile;
+import it.unica.enrico.utils.KeyUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.*;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
 
 public class Blockchain {
 
+    // Directory for the on disk block stores (one sub directory per owner), blocks are kept on the heap when unset
+    private static final String BLOCKCHAIN_DIR = System.getProperty("blockchain_dir");
+    // Key files next to the block stores, the stored blocks only verify again after a restart with the same keys
+    private static final String NO_ONE_KEY_FILE = "no_one.key";
+    private static final String WALLET_KEY_FILE = "wallet.key";
+
     public static final String NO_ONE = "no one";
+    public static final SignatureScheme NO_ONE_SCHEME;
     public static final Signature NO_ONE_SIGNATURE;
     public static final byte[] NO_ONE_PUB_KEY;
     static {
-        try {
-            final KeyPairGenerator gen = KeyPairGenerator.getInstance("DSA", "SUN");
-            final SecureRandom random = SecureRandom.getInstance("SHA1PRNG", "SUN");
-            gen.initialize(512, random);
-
-            final KeyPair pair = gen.generateKeyPair();
-            final PrivateKey privateKey = pair.getPrivate();
-            NO_ONE_SIGNATURE = Signature.getInstance("SHA1withDSA", "SUN");
-            NO_ONE_SIGNATURE.initSign(privateKey);
-
-            final PublicKey publicKey = pair.getPublic();
-            NO_ONE_PUB_KEY = publicKey.getEncoded();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        final KeyFile keys;
+        if (BLOCKCHAIN_DIR != null)
+            keys = KeyFile.loadOrCreate(new File(BLOCKCHAIN_DIR, NO_ONE_KEY_FILE), KeyUtils.getDefaultScheme());
+        else
+            keys = KeyFile.create(KeyUtils.getDefaultScheme());
+        NO_ONE_SCHEME = keys.getScheme();
+        NO_ONE_SIGNATURE = NO_ONE_SCHEME.newSigner(keys.getKeyPair().getPrivate());
+        NO_ONE_PUB_KEY = keys.getKeyPair().getPublic().getEncoded();
     }
     public static final String GENESIS_NAME  = "Genesis-TheWall";
     protected static final boolean DEBUG = Boolean.getBoolean("debug");
     private static final byte[] INITIAL_HASH= new byte[0];
+    // Consensus parameters of a chain created by this node, a chain loaded from disk keeps those of its genesis block
+    private static final ChainParams NEW_CHAIN_PARAMS = ChainParams.fromProperties();
+    // Max difficulty change between two blocks, in bits (a factor of 2 in expected hashes)
+    private static final double MAX_ADJUSTMENT = 1d;
+    // Blocks between two checkpoints of the unused pool and balances, a restart only replays the blocks after the last one
+    private static final int CHECKPOINT_INTERVAL = Math.max(1, Integer.getInteger("checkpoint_interval", 1000));
     private static final Transaction GENESIS_TRANS;
     private static final Block GENESIS_BLOCK;
 
@@ -45,7 +59,7 @@ public class Blockchain {
         final String outputMsg = "Genesis gets 50 coins.";
         output[0] = Transaction.newSignedTransaction(NO_ONE_SIGNATURE, NO_ONE, GENESIS_NAME, outputMsg, 50, empty, empty);
 
-        final String msg = "Genesis transfer.";
+        final String msg = NEW_CHAIN_PARAMS.appendTo("Genesis transfer.");
         GENESIS_TRANS = Transaction.newSignedTransaction(NO_ONE_SIGNATURE, NO_ONE, GENESIS_NAME, msg, 0, empty, output);
 
         final ByteBuffer buffer = ByteBuffer.allocate(GENESIS_TRANS.getBufferLength());
@@ -60,32 +74,146 @@ public class Blockchain {
         GENESIS_BLOCK.setBloccoConf(true);
     }
 
-    private final List<Block> blockchain= new CopyOnWriteArrayList<Block>();
-    private final List<Transaction> transactions = new CopyOnWriteArrayList<Transaction>();
-    private final List<Transaction> unused = new CopyOnWriteArrayList<Transaction>();
+    private final AppendOnlyList<Block> blockchain = new AppendOnlyList<Block>();
+    private final UtxoSet unused = new UtxoSet();
+    private final BalanceIndex balances = new BalanceIndex();
+    private final BlockStore store;     // null when the blocks live in 'blockchain'
 
     private final String                    owner;
+    private final ChainParams               params;
+    private final int                       initialDifficulty;
 
-    private volatile byte[]                 latestHash          = INITIAL_HASH;
+    // the chain's end, replaced as a whole so checkHash never mixes the hash of one block with the difficulty of another
+    private volatile Tip                    tip;
 
-    public Blockchain(String owner) {
+    public Blockchain(String owner, int initialDifficulty) {
         this.owner = owner;
-        // transfer initial coins to genesis entity
-        this.addBlock(GENESIS_NAME, GENESIS_BLOCK);
+        if (BLOCKCHAIN_DIR != null) {
+            try {
+                this.store = new BlockStore(new File(BLOCKCHAIN_DIR, owner));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            this.store = null;
+        }
+        this.params = ChainParams.of((getLength() > 0) ? getBlock(0) : GENESIS_BLOCK);
+        // a strict chain asks for real leading zeros, as a compact target every node reads the same way
+        this.initialDifficulty = params.powStrict ? DifficultyTarget.toCompact(initialDifficulty) : initialDifficulty;
+        this.tip = new Tip(0, INITIAL_HASH, this.initialDifficulty, 0);
+        if (DEBUG)
+            System.out.println(owner+" Chain parameters. "+params);
+
+        if (getLength() > 0) {
+            // restarting from disk
+            load();
+        } else {
+            // transfer initial coins to genesis entity
+            this.addBlock(GENESIS_NAME, GENESIS_BLOCK);
+        }
+    }
+
+    /**
+     * The keys of 'owner', kept next to its block store when there is one so its stored transactions are still its
+     * own after a restart. A key file, when there is one, wins over 'scheme'.
+     */
+    static KeyFile getKeys(String owner, SignatureScheme scheme) {
+        if (BLOCKCHAIN_DIR == null)
+            return KeyFile.create(scheme);
+        final File directory = new File(BLOCKCHAIN_DIR, owner);
+        final File file = new File(directory, WALLET_KEY_FILE);
+        if (!file.exists() && directory.isDirectory())
+            System.err.println(owner+" Has a block store but no key file, its stored coins can't be spent with new keys.");
+        return KeyFile.loadOrCreate(file, scheme);
     }
 
     public int getLength() {
+        if (store != null)
+            return store.size();
         return blockchain.size();
     }
 
     public Block getBlock(int blockNumber) {
-        if (blockNumber>=blockchain.size())
+        if (blockNumber<0 || blockNumber>=getLength())
             return null;
+        if (store != null)
+            return store.get(blockNumber);
         return blockchain.get(blockNumber);
     }
 
+    /** Checkpoint, flush and close the block store, if any **/
+    public synchronized void close() {
+        if (store == null)
+            return;
+        checkpoint();
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.err.println(owner+" Could not close the block store. "+e);
+        }
+    }
+
+    /**
+     * Rebuild the in memory state (latest hash, unused pool and difficulty) from the last checkpoint and the stored
+     * blocks after it, or from every stored block when there is no checkpoint
+     */
+    private void load() {
+        final int length = getLength();
+        byte[] latestHash = INITIAL_HASH;
+        int from = 0;
+        final int height = store.getCheckpointHeight();
+        final ByteBuffer checkpoint = store.getCheckpoint();
+        if (height > 0 && checkpoint != null) {
+            try {
+                unused.fromBuffer(checkpoint);
+                balances.fromBuffer(checkpoint);
+                latestHash = getBlock(height - 1).hash;
+                from = height;
+            } catch (RuntimeException e) {
+                System.err.println(owner+" Bad checkpoint, replaying every block. "+e);
+                unused.clear();
+                balances.clear();
+            }
+        }
+        for (int i=from; i<length; i++) {
+            final Block block = getBlock(i);
+            if (unused.apply(block) != Constants.Status.SUCCESS)
+                System.err.println(owner+" Stored block "+i+" spends unknown inputs.");
+            balances.apply(block);
+            latestHash = block.hash;
+        }
+        final long timestamp = (length > 0) ? getBlock(length - 1).getTimestamp() : 0;
+        tip = new Tip(length, latestHash, retarget(), timestamp);
+        if (DEBUG)
+            System.out.println(owner+" Loaded "+length+" blocks, replayed "+(length - from)+". hash=["+HashUtils.bytesToHex(latestHash)+"]");
+    }
+
+    /** Save the unused pool and the balances next to the stored blocks, called with the lock held **/
+    private void checkpoint() {
+        final ByteBuffer state = ByteBuffer.allocate(unused.getBufferLength() + balances.getBufferLength());
+        unused.toBuffer(state);
+        balances.toBuffer(state);
+        state.flip();
+        try {
+            store.saveCheckpoint(getLength(), state);
+        } catch (IOException e) {
+            System.err.println(owner+" Could not save a checkpoint. "+e);
+        }
+    }
+
+    /** Difficulty (numeroDiZeri) the next block must be mined with **/
+    public int getNextDifficulty() {
+        return tip.difficulty;
+    }
+
+    /** Snapshot of every unspent transaction **/
     public List<Transaction> getUnused() {
-        return unused;
+        return unused.getUnused();
+    }
+
+    /** Snapshot of the unspent transactions sent to 'name' **/
+    public List<Transaction> getUnused(String name) {
+        return unused.getUnused(name);
     }
 
     public Block getNextBlock(String name, Transaction[] transactions) {
@@ -102,15 +230,19 @@ public class Blockchain {
             bb.put(buffer.array());
         }
 
-        final byte[] nextHash = getNextHash(latestHash, bytes);
-        return (new Block(name, latestHash, nextHash, transactions, this.blockchain.size()));
+        final Tip tip = this.tip;
+        final byte[] nextHash = getNextHash(tip.hash, bytes);
+        return (new Block(name, tip.hash, nextHash, transactions, tip.length));
     }
 
     public Constants.Status checkHash(Block block) {
-        if (block.getDimensione() > this.blockchain.size()) {
+        // one read of the tip, a block added meanwhile can't give the hash and the difficulty of different blocks
+        final Tip tip = this.tip;
+        final int size = tip.length;
+        if (block.getDimensione() > size) {
             // This block is in the future
             if (DEBUG)
-                System.out.println(owner+" found a future block. lengths="+this.blockchain.size()+"\n"+"block={\n"+block.toString()+"\n}");
+                System.out.println(owner+" found a future block. lengths="+size+"\n"+"block={\n"+block.toString()+"\n}");
             return Constants.Status.FUTURE_BLOCK;
         }
 
@@ -128,7 +260,7 @@ public class Blockchain {
         }
 
         // Calculate what I think the next has should be
-        final byte[] nextHash = getNextHash(latestHash, bytes);
+        final byte[] nextHash = getNextHash(tip.hash, bytes);
 
         // Store the previous and next hash from the block
         final byte[] incomingPrev = block.hashBloccoPrecedente;
@@ -140,8 +272,8 @@ public class Blockchain {
                 StringBuilder builder = new StringBuilder();
                 builder.append(owner).append("Hash del blocco invalido \n");
                 builder.append("confermato? "+block.getBloccoConf()).append("\n");
-                builder.append("dimensione: ").append(this.blockchain.size()).append("\n");
-                builder.append("l'ultimo hash: ["+ HashUtils.bytesToHex(latestHash)+"]\n");
+                builder.append("dimensione: ").append(size).append("\n");
+                builder.append("l'ultimo hash: ["+ HashUtils.bytesToHex(tip.hash)+"]\n");
                 builder.append("prossimo: ["+HashUtils.bytesToHex(nextHash)+"]\n");
                 builder.append("Prossima dimensione: ").append(block.getDimensione()).append("\n");
                 builder.append("Prossimo hash precedente: ["+HashUtils.bytesToHex(incomingPrev)+"]\n");
@@ -151,12 +283,34 @@ public class Blockchain {
             return Constants.Status.BAD_HASH;
         }
 
+        // Every block but the genesis has to use the difficulty the chain asks for
+        if (size > 0 && block.getNumeroDiZeri() != tip.difficulty) {
+            if (DEBUG)
+                System.err.println(owner+" Bad difficulty. expected="+tip.difficulty+" block="+block.getNumeroDiZeri());
+            return Constants.Status.BAD_DIFFICULTY;
+        }
+
+        // A mined block's timestamp drives the retarget and is covered by its proof of work: it can't go back
+        // in time, or be further in the future than the clocks can drift
+        if (size > 0 && block.getBloccoConf()) {
+            final long previous = tip.timestamp;
+            final long latest = System.currentTimeMillis() + params.maxClockDrift;
+            if (block.getTimestamp() < previous || block.getTimestamp() > latest) {
+                if (DEBUG)
+                    System.err.println(owner+" Bad timestamp. previous="+previous+" block="+block.getTimestamp());
+                return Constants.Status.BAD_TIMESTAMP;
+            }
+        }
+
         return Constants.Status.SUCCESS;
     }
 
-    public Constants.Status addBlock(String dataFrom, Block block) {
-        // Already processed this block? Happens if a miner is slow and isn't first to confirm the block
-        if (blockchain.contains(block))
+    // synchronized, the chain is checked and extended as one step
+    public synchronized Constants.Status addBlock(String dataFrom, Block block) {
+        // Already processed this block? Happens if a miner is slow and isn't first to confirm the block.
+        // A block's dimensione is the length of the chain it was built on, i.e. its position.
+        final Block existing = getBlock(block.getDimensione());
+        if (existing != null && existing.equals(block))
             return Constants.Status.DUPLICATE;
 
         // Check to see if the block's hash is what I expect
@@ -164,39 +318,38 @@ public class Blockchain {
         if (status != Constants.Status.SUCCESS)
             return status;
 
-        // Get the aggregate transaction for processing
-        for (Transaction transaction : block.getTransazioni()) {
-            // Remove the inputs from the unused pool
-            for (Transaction t : transaction.inputs) {
-                boolean exists = unused.remove(t);
-                if (exists == false) {
-                    if (DEBUG)
-                        System.err.println(owner+" Bad inputs in block from '"+dataFrom+"'. block={\n"+block.toString()+"\n}");
-                    return Constants.Status.BAD_INPUTS;
-                }
-            }
-        }
-
-        // Add outputs to unused pool
-        for (Transaction transaction : block.getTransazioni()) {
-            for (Transaction t : transaction.outputs)
-                unused.add(t);
+        // Spend the inputs and add the outputs to the unused pool, nothing changes if an input is missing
+        final Constants.Status spent = unused.apply(block);
+        if (spent != Constants.Status.SUCCESS) {
+            if (DEBUG)
+                System.err.println(owner+" Bad inputs in block from '"+dataFrom+"'. block={\n"+block.toString()+"\n}");
+            return spent;
         }
 
         // Update the hash and add the new transaction to the list
-        final byte[] prevHash = latestHash;
+        final byte[] prevHash = tip.hash;
         final byte[] nextHash = block.hash;
-        blockchain.add(block);
-        for (Transaction transaction : block.getTransazioni())
-            transactions.add(transaction);
-        latestHash = nextHash;
+        if (store != null) {
+            try {
+                store.append(block);
+            } catch (IOException e) {
+                unused.rollback(block);
+                throw new RuntimeException(e);
+            }
+        } else {
+            blockchain.add(block);
+        }
+        balances.apply(block);
+        tip = new Tip(getLength(), nextHash, retarget(), block.getTimestamp());
+        if (store != null && getLength() % CHECKPOINT_INTERVAL == 0)
+            checkpoint();
 
         if (DEBUG) {
             final String prev = HashUtils.bytesToHex(prevHash);
             final String next = HashUtils.bytesToHex(nextHash);
             final StringBuilder builder = new StringBuilder();
             builder.append(owner).append(" Hash aggiornato").append(" msg da: '"+dataFrom+"'").append(" blocco da: '"+block.getProvenienza()+"'\n");
-            builder.append("Dimensione blockchain: ").append(blockchain.size()).append("\n");
+            builder.append("Dimensione blockchain: ").append(getLength()).append("\n");
             builder.append("Transazioni: [\n");
             for (Transaction t : block.getTransazioni()) {
                 builder.append(t.toString()).append("\n");
@@ -210,28 +363,59 @@ public class Blockchain {
         return Constants.Status.SUCCESS;
     }
 
+    /**
+     * Difficulty for the next block: the average time between the last 'retarget_window' blocks is compared with
+     * 'target_block_time' (both from the chain parameters) and the difficulty of the last block moves by log2(target/actual) bits, at most
+     * MAX_ADJUSTMENT per block. Keeps the initial difficulty until the window is full.
+     */
+    private int retarget() {
+        final int length = getLength();
+        // the genesis block has no timestamp
+        if (params.targetBlockTime <= 0 || length - 1 < params.retargetWindow)
+            return initialDifficulty;
+
+        final Block last = getBlock(length - 1);
+        final Block first = getBlock(length - params.retargetWindow);
+        final long span = last.getTimestamp() - first.getTimestamp();
+        if (span <= 0)
+            return last.getNumeroDiZeri();
+
+        final double actual = (double) span / (params.retargetWindow - 1);
+        double adjustment = Math.log(params.targetBlockTime / actual) / Math.log(2d);
+        adjustment = Math.max(-MAX_ADJUSTMENT, Math.min(MAX_ADJUSTMENT, adjustment));
+        final double bits = DifficultyTarget.workBits(last.getNumeroDiZeri()) + adjustment;
+        final int difficulty = DifficultyTarget.toCompact(bits);
+        if (DEBUG)
+            System.out.println(owner+" Retarget. block time="+actual+"ms bits="+bits+" difficulty="+Integer.toHexString(difficulty));
+        return difficulty;
+    }
+
     public long getBalance(String name) {
-        long result = 0;
-        for (Transaction t : transactions) {
-            // Remove the inputs
-            for (Transaction c : t.inputs) {
-                if (name.equals(c.getDestinatario()))
-                    result -= c.getValore();
-            }
-            // Add the outputs
-            for (Transaction c : t.outputs) {
-                if (name.equals(c.getDestinatario()))
-                    result += c.getValore();
-            }
-        }
-        return result;
+        return balances.getBalance(name);
+    }
+
+    /** Balances of all the 'names', taken after the same block **/
+    public Map<String, Long> getBalances(Collection<String> names) {
+        return balances.getBalances(names);
+    }
+
+    /** Rebuild the balance index from a full scan of the chain, returns false if the index was out of date **/
+    // synchronized like addBlock, a block added during the scan would be counted twice
+    public synchronized boolean verifyBalances() {
+        final boolean valid = balances.rebuild(this);
+        if (!valid)
+            System.err.println(owner+" Balance index did not match the chain, rebuilt.");
+        return valid;
     }
 
     public static final byte[] getNextHash(byte[] hash, byte[] bytes) {
-        final StringBuilder builder = new StringBuilder();
-        builder.append(HashUtils.bytesToHex(hash)).append(HashUtils.bytesToHex(bytes));
-        final String string = builder.toString();
-        final byte[] output = HashUtils.calculateSha256(string);
+        // sha256d of hex(hash) + hex(bytes), the hex is written straight into the per thread work buffer
+        final HashUtils.Sha256d hasher = HashUtils.getSha256d();
+        final byte[] hex = hasher.scratch((hash.length + bytes.length) * 2);
+        int length = HashUtils.bytesToHex(hash, hex, 0);
+        length = HashUtils.bytesToHex(bytes, hex, length);
+        final byte[] output = new byte[HashUtils.Sha256d.DIGEST_LENGTH];
+        hasher.digest(hex, 0, length, output, 0);
         return output;
     }
 
@@ -243,12 +427,11 @@ public class Blockchain {
         if (!(o instanceof Blockchain))
             return false;
         final Blockchain other = (Blockchain) o;
-        for (Block b : blockchain) {
-            if (!(other.blockchain.contains(b)))
-                return false;
-        }
-        for (Transaction t : transactions) {
-            if (!(other.transactions.contains(t)))
+        final int length = getLength();
+        if (other.getLength() < length)
+            return false;
+        for (int i=0; i<length; i++) {
+            if (!(getBlock(i).equals(other.getBlock(i))))
                 return false;
         }
         return true;
@@ -260,19 +443,40 @@ public class Blockchain {
     @Override
     public String toString() {
         final StringBuilder builder = new StringBuilder();
-        builder.append("Hash: [").append(HashUtils.bytesToHex(latestHash)).append("]\n");
+        builder.append("Hash: [").append(HashUtils.bytesToHex(tip.hash)).append("]\n");
+        final int length = getLength();
         builder.append("gli input: {").append("\n");
-        for (Transaction c : transactions) {
-            for (Transaction i : c.inputs)
-                builder.append('\t').append(i.getValore()).append(" da '").append(i.getMittente()).append("' -> a '").append(i.getDestinatario()).append("'\n");
-            builder.append("}\n");
+        for (int b=0; b<length; b++) {
+            for (Transaction c : getBlock(b).getTransazioni()) {
+                for (Transaction i : c.inputs)
+                    builder.append('\t').append(i.getValore()).append(" da '").append(i.getMittente()).append("' -> a '").append(i.getDestinatario()).append("'\n");
+                builder.append("}\n");
+            }
         }
         builder.append("gli output: {").append("\n");
-        for (Transaction c : transactions) {
-            for (Transaction i : c.outputs)
-                builder.append('\t').append(i.getValore()).append(" da '").append(i.getMittente()).append("' -> a '").append(i.getDestinatario()).append("'\n");
-            builder.append("}\n");
+        for (int b=0; b<length; b++) {
+            for (Transaction c : getBlock(b).getTransazioni()) {
+                for (Transaction i : c.outputs)
+                    builder.append('\t').append(i.getValore()).append(" da '").append(i.getMittente()).append("' -> a '").append(i.getDestinatario()).append("'\n");
+                builder.append("}\n");
+            }
         }
         return builder.toString();
     }
-}
\ No newline at end of file
+
+    /** Length of the chain, hash and timestamp of its last block, and the difficulty of the next one **/
+    private static final class Tip {
+
+        private final int       length;
+        private final byte[]    hash;
+        private final int       difficulty;
+        private final long      timestamp;
+
+        private Tip(int length, byte[] hash, int difficulty, long timestamp) {
+            this.length = length;
+            this.hash = hash;
+            this.difficulty = difficulty;
+            this.timestamp = timestamp;
+        }
+    }
+}
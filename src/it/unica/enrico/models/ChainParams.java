@@ -0,0 +1,94 @@
+package it.unica.enrico.models;
+
+/* parametri di consenso della catena: decidono quali blocchi sono validi, per cui tutti i nodi devono usare gli stessi.
+   Sono scritti nel messaggio della transazione del blocco genesi, e quindi coperti dal suo hash: nodi con parametri
+   diversi hanno un genesi diverso e rifiutano subito i blocchi l'uno dell'altro invece di separarsi più avanti.
+   Le proprietà di sistema valgono solo quando si crea una catena nuova; una catena riletta dal disco usa i parametri
+   del suo blocco genesi */
+final class ChainParams {
+
+    private static final String PREFIX = " params:";
+    private static final String TARGET_BLOCK_TIME = "target_block_time";
+    private static final String RETARGET_WINDOW = "retarget_window";
+    private static final String MAX_CLOCK_DRIFT = "max_clock_drift";
+    private static final String POW_STRICT = "pow_strict";
+
+    // What a genesis block without parameters stands for
+    static final ChainParams DEFAULT = new ChainParams(0, 16, 2*60*1000, false);
+
+    // Wanted time between two blocks in milliseconds, difficulty retargeting is off when <= 0
+    final long      targetBlockTime;
+    // Number of recent blocks whose timestamps are used to measure the block time
+    final int       retargetWindow;
+    // How far in the future a block's timestamp may be, in ms
+    final long      maxClockDrift;
+    // The initial number of zeros are real leading zeros of the hash instead of the legacy bit rules
+    final boolean   powStrict;
+
+    private ChainParams(long targetBlockTime, int retargetWindow, long maxClockDrift, boolean powStrict) {
+        this.targetBlockTime = targetBlockTime;
+        this.retargetWindow = Math.max(2, retargetWindow);
+        this.maxClockDrift = maxClockDrift;
+        this.powStrict = powStrict;
+    }
+
+    /** Parameters for a new chain, from the system properties **/
+    static ChainParams fromProperties() {
+        return new ChainParams(Long.getLong(TARGET_BLOCK_TIME, DEFAULT.targetBlockTime),
+                               Integer.getInteger(RETARGET_WINDOW, DEFAULT.retargetWindow),
+                               Long.getLong(MAX_CLOCK_DRIFT, DEFAULT.maxClockDrift),
+                               Boolean.getBoolean(POW_STRICT));
+    }
+
+    /** Parameters written in the genesis block, DEFAULT when it has none **/
+    static ChainParams of(Block genesis) {
+        final String header = genesis.getTransazioni()[0].getHeader();
+        final int start = header.indexOf(PREFIX);
+        if (start < 0)
+            return DEFAULT;
+
+        long targetBlockTime = DEFAULT.targetBlockTime;
+        int retargetWindow = DEFAULT.retargetWindow;
+        long maxClockDrift = DEFAULT.maxClockDrift;
+        boolean powStrict = DEFAULT.powStrict;
+        for (String pair : header.substring(start + PREFIX.length()).split(",")) {
+            final int equals = pair.indexOf('=');
+            if (equals < 0)
+                continue;
+            final String key = pair.substring(0, equals);
+            final String value = pair.substring(equals + 1);
+            try {
+                if (key.equals(TARGET_BLOCK_TIME))
+                    targetBlockTime = Long.parseLong(value);
+                else if (key.equals(RETARGET_WINDOW))
+                    retargetWindow = Integer.parseInt(value);
+                else if (key.equals(MAX_CLOCK_DRIFT))
+                    maxClockDrift = Long.parseLong(value);
+                else if (key.equals(POW_STRICT))
+                    powStrict = Boolean.parseBoolean(value);
+            } catch (NumberFormatException e) {
+                System.err.println("Bad chain parameter '"+pair+"' in the genesis block. "+e);
+            }
+        }
+        return new ChainParams(targetBlockTime, retargetWindow, maxClockDrift, powStrict);
+    }
+
+    /** Appends the parameters to the genesis transaction's message **/
+    String appendTo(String message) {
+        final StringBuilder builder = new StringBuilder(message);
+        builder.append(PREFIX);
+        builder.append(TARGET_BLOCK_TIME).append('=').append(targetBlockTime).append(',');
+        builder.append(RETARGET_WINDOW).append('=').append(retargetWindow).append(',');
+        builder.append(MAX_CLOCK_DRIFT).append('=').append(maxClockDrift).append(',');
+        builder.append(POW_STRICT).append('=').append(powStrict);
+        return builder.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return appendTo("").substring(PREFIX.length());
+    }
+}
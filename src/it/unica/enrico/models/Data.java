@@ -4,12 +4,22 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class Data {
 
+    // Header format version, bumped on every incompatible change of the encoding
+    private static final byte VERSION = 1;
+    private static final int VERSION_LENGTH = 1;
     private static final int LENGTH_LENGTH = 4;
-    private static final int FROM_LENGTH = 4;
-    private static final int TO_LENGTH = 4;
+    private static final int NAME_LENGTH = 2;
+    private static final int ADDRESS_LENGTH = 1;
+    private static final int PORT_LENGTH = 2;
+    private static final int CACHE_SIZE = 1024;
+
+    private static final ConcurrentMap<ByteBuffer,String> NAMES = new ConcurrentHashMap<ByteBuffer,String>();
+    private static final ConcurrentMap<ByteBuffer,InetAddress> ADDRESSES = new ConcurrentHashMap<ByteBuffer,InetAddress>();
 
     private String mittente;
     private String destinatario;
@@ -18,12 +28,19 @@ public class Data {
     private InetAddress indirizzoDestinzazione;
     private int portaDestinzazione;
 
+    // encoded forms, computed once for getBufferLength and toBuffer
+    private byte[] bMittente;
+    private byte[] bDestinatario;
+    private byte[] bIndirizzoSorgente;
+    private byte[] bIndirizzoDestinazione;
+
     public String getMittente () {
         return mittente;
     }
 
     public void setMittente (String mittente) {
         this.mittente = mittente;
+        this.bMittente = null;
     }
 
     public String getDestinatario () {
@@ -32,6 +49,7 @@ public class Data {
 
     public void setDestinatario (String destinatario) {
         this.destinatario = destinatario;
+        this.bDestinatario = null;
     }
 
     public InetAddress getIndirizzoSorgente () {
@@ -40,6 +58,7 @@ public class Data {
 
     public void setIndirizzoSorgente (InetAddress indirizzoSorgente) {
         this.indirizzoSorgente = indirizzoSorgente;
+        this.bIndirizzoSorgente = null;
     }
 
     public int getPortaSorgente () {
@@ -56,6 +75,7 @@ public class Data {
 
     public void setIndirizzoDestinzazione (InetAddress indirizzoDestinzazione) {
         this.indirizzoDestinzazione = indirizzoDestinzazione;
+        this.bIndirizzoDestinazione = null;
     }
 
     public int getPortaDestinzazione () {
@@ -101,130 +121,144 @@ public class Data {
         this.portaSorgente = portaSorgente;
         this.portaDestinzazione = portaDestinzazione;
 
-        this.firma = ByteBuffer.allocate(firma.length);
-        this.firma.put(firma);
-        this.firma.flip();
+        // the arrays are not copied, they must not be changed afterwards
+        this.firma = ByteBuffer.wrap(firma);
+        this.messaggio = ByteBuffer.wrap(messaggio);
+    }
 
-        this.messaggio = ByteBuffer.allocate(messaggio.length);
-        this.messaggio.put(messaggio);
-        this.messaggio.flip();
+    private void encode() {
+        if (bMittente == null)
+            bMittente = mittente.getBytes();
+        if (bDestinatario == null)
+            bDestinatario = destinatario.getBytes();
+        if (bIndirizzoSorgente == null)
+            bIndirizzoSorgente = indirizzoSorgente.getAddress();
+        if (bIndirizzoDestinazione == null)
+            bIndirizzoDestinazione = indirizzoDestinzazione.getAddress();
     }
 
     public int getBufferLength() {
-        return  FROM_LENGTH + mittente.getBytes().length +
-                TO_LENGTH + destinatario.getBytes().length +
-                LENGTH_LENGTH + indirizzoSorgente.getHostAddress().getBytes().length +
-                LENGTH_LENGTH + String.valueOf(portaSorgente).getBytes().length +
-                LENGTH_LENGTH + indirizzoDestinzazione.getHostAddress().getBytes().length +
-                LENGTH_LENGTH + String.valueOf(portaDestinzazione).getBytes().length +
+        encode();
+        return  VERSION_LENGTH +
+                NAME_LENGTH + bMittente.length +
+                NAME_LENGTH + bDestinatario.length +
+                ADDRESS_LENGTH + bIndirizzoSorgente.length + PORT_LENGTH +
+                ADDRESS_LENGTH + bIndirizzoDestinazione.length + PORT_LENGTH +
                 LENGTH_LENGTH + firma.limit() +
                 LENGTH_LENGTH + messaggio.limit();
     }
 
     public void toBuffer(ByteBuffer buffer) {
-        final byte[] fBytes = mittente.getBytes();
-        buffer.putInt(fBytes.length);
-        buffer.put(fBytes);
+        encode();
+        buffer.put(VERSION);
 
-        final byte[] oBytes = destinatario.getBytes();
-        buffer.putInt(oBytes.length);
-        buffer.put(oBytes);
+        buffer.putShort((short) bMittente.length);
+        buffer.put(bMittente);
 
-        { // Source
-            final byte[] hBytes = indirizzoSorgente.getHostAddress().getBytes();
-            final int hLength = hBytes.length;
-            buffer.putInt(hLength);
-            buffer.put(hBytes);
-
-            final byte[] pBytes = String.valueOf(portaSorgente).getBytes();
-            final int pLength = pBytes.length;
-            buffer.putInt(pLength);
-            buffer.put(pBytes);
+        buffer.putShort((short) bDestinatario.length);
+        buffer.put(bDestinatario);
+
+        { // Source, raw 4 or 16 byte address
+            buffer.put((byte) bIndirizzoSorgente.length);
+            buffer.put(bIndirizzoSorgente);
+            buffer.putShort((short) portaSorgente);
         }
 
         { // Destination
-            final byte[] hBytes = indirizzoDestinzazione.getHostAddress().getBytes();
-            final int hLength = hBytes.length;
-            buffer.putInt(hLength);
-            buffer.put(hBytes);
-
-            final byte[] pBytes = String.valueOf(portaDestinzazione).getBytes();
-            final int pLength = pBytes.length;
-            buffer.putInt(pLength);
-            buffer.put(pBytes);
+            buffer.put((byte) bIndirizzoDestinazione.length);
+            buffer.put(bIndirizzoDestinazione);
+            buffer.putShort((short) portaDestinzazione);
         }
 
-        // Sig
+        // Sig, written from its backing array so the message can be encoded again
         buffer.putInt(firma.limit());
-        buffer.put(firma);
+        buffer.put(firma.array(), firma.arrayOffset(), firma.limit());
 
         // Data
         buffer.putInt(messaggio.limit());
-        buffer.put(messaggio);
+        buffer.put(messaggio.array(), messaggio.arrayOffset(), messaggio.limit());
     }
 
+    /**
+     * Decode a message, throws IllegalArgumentException if it was encoded with another version of the format or a
+     * length in it runs past the end of 'buffer'
+     */
     public void fromBuffer(ByteBuffer buffer) {
-        final int fLength = buffer.getInt();
-        final byte[] fBytes = new byte[fLength];
-        buffer.get(fBytes, 0, fLength);
-        mittente = new String(fBytes);
+        bMittente = bDestinatario = bIndirizzoSorgente = bIndirizzoDestinazione = null;
 
-        final int oLength = buffer.getInt();
-        final byte[] oBytes = new byte[oLength];
-        buffer.get(oBytes, 0, oLength);
-        destinatario = new String(oBytes);
+        final byte version = buffer.get();
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unsupported message version="+version+" (expected "+VERSION+"), the sender runs an incompatible node");
 
-        { // Source
-            final int hLength = buffer.getInt();
-            final byte[] hostBytes = new byte[hLength];
-            buffer.get(hostBytes);
-            final String sHost = new String(hostBytes);
-            try {
-                this.indirizzoSorgente = InetAddress.getByName(sHost);
-            } catch (UnknownHostException e) {
-                throw new RuntimeException(e);
-            }
+        mittente = getName(buffer);
+        destinatario = getName(buffer);
 
-            final int pLength = buffer.getInt();
-            final byte[] portBytes = new byte[pLength];
-            buffer.get(portBytes);
-            final String sPort = new String(portBytes);
-            this.portaSorgente = Integer.parseInt(sPort);
+        { // Source
+            this.indirizzoSorgente = getAddress(buffer);
+            this.portaSorgente = buffer.getShort() & 0xffff;
         }
 
         { // Destination
-            final int hLength = buffer.getInt();
-            final byte[] hostBytes = new byte[hLength];
-            buffer.get(hostBytes);
-            final String sHost = new String(hostBytes);
-            try {
-                this.indirizzoDestinzazione = InetAddress.getByName(sHost);
-            } catch (UnknownHostException e) {
-                throw new RuntimeException(e);
-            }
-
-            final int pLength = buffer.getInt();
-            final byte[] portBytes = new byte[pLength];
-            buffer.get(portBytes);
-            final String sPort = new String(portBytes);
-            this.portaDestinzazione = Integer.parseInt(sPort);
+            this.indirizzoDestinzazione = getAddress(buffer);
+            this.portaDestinzazione = buffer.getShort() & 0xffff;
         }
 
         // Sig
-        final int sLength = buffer.getInt();
+        final int sLength = checkLength(buffer, buffer.getInt(), "signature");
         final byte[] sBytes = new byte[sLength];
         buffer.get(sBytes, 0, sLength);
-        this.firma = ByteBuffer.allocate(sBytes.length);
-        this.firma.put(sBytes);
+        this.firma = ByteBuffer.wrap(sBytes);
 
         // Data
-        final int dLength = buffer.getInt();
+        final int dLength = checkLength(buffer, buffer.getInt(), "message");
         final byte[] dBytes = new byte[dLength];
         buffer.get(dBytes, 0, dLength);
-        this.messaggio = ByteBuffer.allocate(dBytes.length);
-        this.messaggio.put(dBytes);
+        this.messaggio = ByteBuffer.wrap(dBytes);
+    }
 
-        this.messaggio.flip();
+    /** A length read from the wire, before anything is allocated for it **/
+    private static int checkLength(ByteBuffer buffer, int length, String field) {
+        if (length < 0 || length > buffer.remaining())
+            throw new IllegalArgumentException("Bad "+field+" length="+length+" remaining="+buffer.remaining());
+        return length;
+    }
+
+    /** Peer names repeat on every message, keep one String for each **/
+    private static String getName(ByteBuffer buffer) {
+        final int length = checkLength(buffer, buffer.getShort() & 0xffff, "name");
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        final ByteBuffer key = ByteBuffer.wrap(bytes);
+        String name = NAMES.get(key);
+        if (name == null) {
+            if (NAMES.size() >= CACHE_SIZE)
+                NAMES.clear();
+            name = new String(bytes);
+            final String previous = NAMES.putIfAbsent(key, name);
+            if (previous != null)
+                name = previous;
+        }
+        return name;
+    }
+
+    /** Raw addresses are turned into InetAddress without any lookup, and cached **/
+    private static InetAddress getAddress(ByteBuffer buffer) {
+        final int length = checkLength(buffer, buffer.get() & 0xff, "address");
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        final ByteBuffer key = ByteBuffer.wrap(bytes);
+        InetAddress address = ADDRESSES.get(key);
+        if (address == null) {
+            try {
+                address = InetAddress.getByAddress(bytes);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Bad address length="+length, e);
+            }
+            if (ADDRESSES.size() >= CACHE_SIZE)
+                ADDRESSES.clear();
+            ADDRESSES.put(key, address);
+        }
+        return address;
     }
 
     /**
@@ -23,6 +23,8 @@ public class Transaction {
     String header;                      //riassunto della transazione;
     int valore;                         //valore della transazizone
     ByteBuffer firma;                   //firma della transazione
+    private volatile byte[] id;         //hash del contenuto, calcolato alla prima richiesta
+    private int bufferLength = -1;      //lunghezza serializzata, calcolata alla prima richiesta
 
     public String getHeader () {
         return header;
@@ -30,6 +32,8 @@ public class Transaction {
 
     public void setHeader (String header) {
         this.header = header;
+        this.id = null;
+        this.bufferLength = -1;
     }
 
     public int getValore () {
@@ -38,6 +42,8 @@ public class Transaction {
 
     public void setValore (int valore) {
         this.valore = valore;
+        this.id = null;
+        this.bufferLength = -1;
     }
 
     public ByteBuffer getFirma () {
@@ -46,6 +52,8 @@ public class Transaction {
 
     public void setFirma (ByteBuffer firma) {
         this.firma = firma;
+        this.id = null;
+        this.bufferLength = -1;
     }
 
     public Transaction[] getInputs () {
@@ -54,6 +62,8 @@ public class Transaction {
 
     public void setInputs (Transaction[] inputs) {
         this.inputs = inputs;
+        this.id = null;
+        this.bufferLength = -1;
     }
 
     public Transaction[] getOutputs () {
@@ -62,6 +72,8 @@ public class Transaction {
 
     public void setOutputs (Transaction[] outputs) {
         this.outputs = outputs;
+        this.id = null;
+        this.bufferLength = -1;
     }
 
     Transaction[] inputs;               //ToDo
@@ -73,6 +85,8 @@ public class Transaction {
 
     public void setMittente (String mittente) {
         this.mittente = mittente;
+        this.id = null;
+        this.bufferLength = -1;
     }
 
     public String getDestinatario () {
@@ -81,6 +95,8 @@ public class Transaction {
 
     public void setDestinatario (String destinatario) {
         this.destinatario = destinatario;
+        this.id = null;
+        this.bufferLength = -1;
     }
 
     public long getTimestamp () {
@@ -89,6 +105,8 @@ public class Transaction {
 
     public void setTimestamp (long timestamp) {
         this.timestamp = timestamp;
+        this.id = null;
+        this.bufferLength = -1;
     }
 
     public Transaction() { }
@@ -129,9 +147,30 @@ public class Transaction {
 
     public void updateTimestamp() {
         this.timestamp = System.currentTimeMillis();
+        this.id = null;
+        this.bufferLength = -1;
+    }
+
+    /** Identificativo stabile della transazione: SHA-256d della sua serializzazione (toBuffer) **/
+    public byte[] getId() {
+        byte[] result = id;
+        if (result != null)
+            return result;
+
+        final HashUtils.Sha256d sha256d = HashUtils.getSha256d();
+        final int length = getBufferLength();
+        final byte[] bytes = sha256d.scratch(length);
+        toBuffer(ByteBuffer.wrap(bytes, 0, length));
+        result = new byte[HashUtils.Sha256d.DIGEST_LENGTH];
+        sha256d.digest(bytes, 0, length, result, 0);
+        id = result;
+        return result;
     }
 
     public int getBufferLength() {
+        if (bufferLength >= 0)
+            return bufferLength;
+
         int iLength = 0;
         for (Transaction t : inputs)
             iLength += LENGTH_LENGTH + t.getBufferLength();
@@ -148,6 +187,7 @@ public class Transaction {
                      HEADER_LENGTH + header.getBytes().length +
                      FROM_LENGTH + mittente.getBytes().length +
                      TO_LENGTH + destinatario.getBytes().length;
+        bufferLength = length;
         return length;
     }
 
@@ -194,6 +234,8 @@ public class Transaction {
     }
 
     public void fromBuffer(ByteBuffer buffer) {
+        this.id = null;
+        this.bufferLength = -1;
         { // signature
             int sLength = buffer.getInt();
             byte[] bSignature = new byte[sLength];
@@ -204,29 +246,15 @@ public class Transaction {
         { // inputs
             int iLength = buffer.getInt();
             this.inputs = new Transaction[iLength];
-            for (int i=0; i<iLength; i++) {
-                int tLength = buffer.getInt();
-                Transaction t = new Transaction();
-                final byte[] bytes = new byte[tLength];
-                buffer.get(bytes);
-                ByteBuffer bb = ByteBuffer.wrap(bytes);
-                t.fromBuffer(bb);
-                this.inputs[i] = t;
-            }
+            for (int i=0; i<iLength; i++)
+                this.inputs[i] = fromSlice(buffer);
         }
 
         { // ouputs
             int oLength = buffer.getInt();
             this.outputs = new Transaction[oLength];
-            for (int i=0; i<oLength; i++) {
-                int tLength = buffer.getInt();
-                Transaction t = new Transaction();
-                final byte[] bytes = new byte[tLength];
-                buffer.get(bytes);
-                ByteBuffer bb = ByteBuffer.wrap(bytes);
-                t.fromBuffer(bb);
-                this.outputs[i] = t;
-            }
+            for (int i=0; i<oLength; i++)
+                this.outputs[i] = fromSlice(buffer);
         }
 
         timestamp = buffer.getLong();
@@ -248,6 +276,17 @@ public class Transaction {
         destinatario = new String(tBytes);
     }
 
+    /** Decode the length prefixed transaction at the position of 'buffer', reading it in place, and skip past it **/
+    static Transaction fromSlice(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        final ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        final Transaction t = new Transaction();
+        t.fromBuffer(slice);
+        buffer.position(buffer.position() + length);
+        return t;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,143 @@
+package it.unica.enrico.models;
+
+import it.unica.enrico.utils.Constants;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* insieme delle transazioni non ancora spese (UTXO), indicizzate per id (Transaction.getId) e per destinatario.
+   Un blocco viene applicato o annullato per intero: se un input non esiste l'insieme resta invariato */
+public class UtxoSet {
+
+    private static final int LENGTH_LENGTH = 4;
+
+    private final Map<ByteBuffer, Transaction>                  unspent = new HashMap<ByteBuffer, Transaction>();
+    // destinatario -> transazioni non spese, in ordine di arrivo
+    private final Map<String, Map<ByteBuffer, Transaction>>     byOwner = new HashMap<String, Map<ByteBuffer, Transaction>>();
+
+    /** Spend the inputs and add the outputs of every transaction in the block, all or nothing **/
+    public synchronized Constants.Status apply(Block block) {
+        // every input has to be unspent, and spent only once in the block
+        final Set<ByteBuffer> spent = new HashSet<ByteBuffer>();
+        for (Transaction transaction : block.getTransazioni()) {
+            for (Transaction t : transaction.inputs) {
+                final ByteBuffer key = getKey(t);
+                if (!unspent.containsKey(key) || !spent.add(key))
+                    return Constants.Status.BAD_INPUTS;
+            }
+        }
+
+        for (ByteBuffer key : spent)
+            remove(key);
+        for (Transaction transaction : block.getTransazioni()) {
+            for (Transaction t : transaction.outputs)
+                add(t);
+        }
+        return Constants.Status.SUCCESS;
+    }
+
+    /** Undo {@link #apply(Block)}: drop the outputs and make the inputs unspent again **/
+    public synchronized void rollback(Block block) {
+        for (Transaction transaction : block.getTransazioni()) {
+            for (Transaction t : transaction.outputs)
+                remove(getKey(t));
+        }
+        for (Transaction transaction : block.getTransazioni()) {
+            for (Transaction t : transaction.inputs)
+                add(t);
+        }
+    }
+
+    public synchronized boolean contains(Transaction transaction) {
+        return unspent.containsKey(getKey(transaction));
+    }
+
+    public synchronized int size() {
+        return unspent.size();
+    }
+
+    /** Snapshot of every unspent transaction **/
+    public synchronized List<Transaction> getUnused() {
+        return new ArrayList<Transaction>(unspent.values());
+    }
+
+    /** Snapshot of the unspent transactions sent to 'owner', oldest first **/
+    public synchronized List<Transaction> getUnused(String owner) {
+        final Map<ByteBuffer, Transaction> owned = byOwner.get(owner);
+        if (owned == null)
+            return new ArrayList<Transaction>(0);
+        return new ArrayList<Transaction>(owned.values());
+    }
+
+    /** Bytes {@link #toBuffer(ByteBuffer)} writes **/
+    public synchronized int getBufferLength() {
+        int length = LENGTH_LENGTH;
+        for (Transaction transaction : unspent.values())
+            length += LENGTH_LENGTH + transaction.getBufferLength();
+        return length;
+    }
+
+    /** Write every unspent transaction, each owner's oldest first **/
+    public synchronized void toBuffer(ByteBuffer buffer) {
+        buffer.putInt(unspent.size());
+        for (Map<ByteBuffer, Transaction> owned : byOwner.values()) {
+            for (Transaction transaction : owned.values()) {
+                buffer.putInt(transaction.getBufferLength());
+                transaction.toBuffer(buffer);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        unspent.clear();
+        byOwner.clear();
+    }
+
+    /** Replace the set with the transactions written by {@link #toBuffer(ByteBuffer)} **/
+    public synchronized void fromBuffer(ByteBuffer buffer) {
+        clear();
+        final int size = buffer.getInt();
+        for (int i=0; i<size; i++) {
+            final int length = buffer.getInt();
+            final ByteBuffer view = buffer.slice();
+            view.limit(length);
+            final Transaction transaction = new Transaction();
+            transaction.fromBuffer(view);
+            buffer.position(buffer.position() + length);
+            add(transaction);
+        }
+    }
+
+    private void add(Transaction transaction) {
+        final ByteBuffer key = getKey(transaction);
+        unspent.put(key, transaction);
+        Map<ByteBuffer, Transaction> owned = byOwner.get(transaction.getDestinatario());
+        if (owned == null) {
+            owned = new LinkedHashMap<ByteBuffer, Transaction>();
+            byOwner.put(transaction.getDestinatario(), owned);
+        }
+        owned.put(key, transaction);
+    }
+
+    private void remove(ByteBuffer key) {
+        final Transaction transaction = unspent.remove(key);
+        if (transaction == null)
+            return;
+        final Map<ByteBuffer, Transaction> owned = byOwner.get(transaction.getDestinatario());
+        if (owned == null)
+            return;
+        owned.remove(key);
+        if (owned.isEmpty())
+            byOwner.remove(transaction.getDestinatario());
+    }
+
+    private static ByteBuffer getKey(Transaction transaction) {
+        return ByteBuffer.wrap(transaction.getId());
+    }
+}
@@ -1,51 +1,32 @@
 package it.unica.enrico.models;
 
+import it.unica.enrico.interfaces.SignatureScheme;
 import it.unica.enrico.networking.Peer;
 import it.unica.enrico.utils.Constants;
 import it.unica.enrico.utils.HashUtils;
+import it.unica.enrico.utils.KeyCache;
+import it.unica.enrico.utils.KeyFile;
 import it.unica.enrico.utils.KeyUtils;
 import it.unica.enrico.utils.ProofOfWork;
+import it.unica.enrico.utils.SignatureCache;
+import it.unica.enrico.utils.SignatureVerifier;
 
 import java.nio.ByteBuffer;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class Wallet extends Peer {
 
-    protected final KeyPairGenerator gen;
-    protected final SecureRandom random;
+    protected final SignatureScheme scheme;
     protected final Signature enc;
-    protected final Signature dec;
     protected final KeyPair pair;
     protected final PrivateKey privateKey;
-    protected final KeyFactory keyFactory;
     protected final PublicKey publicKey;
     protected final byte[] bPublicKey;
 
-    { // initialize the private/public key associated with this wallet
-        try {
-            gen = KeyPairGenerator.getInstance("DSA", "SUN");
-            random = SecureRandom.getInstance("SHA1PRNG", "SUN");
-            gen.initialize(512, random);
-
-            enc = Signature.getInstance("SHA1withDSA", "SUN");
-            dec = Signature.getInstance("SHA1withDSA", "SUN");
-
-            pair = gen.generateKeyPair();
-            privateKey = pair.getPrivate();
-            enc.initSign(privateKey);
-
-            publicKey = pair.getPublic();
-            bPublicKey = publicKey.getEncoded();
-
-            keyFactory = KeyFactory.getInstance("DSA", "SUN");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    // Number of zeros in prefix of has to compute as the proof of work.
+    // Number of zeros in prefix of has to compute as the proof of work, until the blockchain retargets it.
     private static final int NUMBER_OF_ZEROS = 32;
     // Number of transactions to aggregate in a Block
     private static final int NUMBER_OF_TRANSACTIONS_IN_BLOCK = 1;
@@ -65,19 +46,37 @@ public class Wallet extends Peer {
     };
 
     // Keep track of everyone's name -> public key
-    private final Map<String, ByteBuffer> publicKeys = new ConcurrentHashMap<String, ByteBuffer>();
+    private final Map<String, PeerKey> publicKeys = new ConcurrentHashMap<String, PeerKey>();
+    // Decoded form of the public keys above
+    private final KeyCache keyCache = new KeyCache();
+    // Signatures which verified before, on any wallet
+    private final SignatureCache signatures = SignatureCache.getShared();
     // My BLockChain
     private final Blockchain blockchain;
     // Ranks transactions by their value to me
     private final PriorityQueue<Transaction> transactionQueue = new PriorityQueue<Transaction>(10, TRANSACTION_COMPARATOR);
 
+    /** A wallet with a key of the 'signature_scheme' scheme **/
     public Wallet (String name) {
+        this(name, KeyUtils.getDefaultScheme());
+    }
+
+    public Wallet (String name, SignatureScheme scheme) {
         super(name);
+        // initialize the private/public key associated with this wallet, the ones saved with its blockchain if any
+        final KeyFile keys = Blockchain.getKeys(name, scheme);
+        this.scheme = keys.getScheme();
+        this.pair = keys.getKeyPair();
+        this.privateKey = pair.getPrivate();
+        this.enc = this.scheme.newSigner(privateKey);
+        this.publicKey = pair.getPublic();
+        this.bPublicKey = publicKey.getEncoded();
+
         // add the initial pub key
-        this.publicKeys.put(Blockchain.NO_ONE, ByteBuffer.wrap(Blockchain.NO_ONE_PUB_KEY));
-        this.publicKeys.put(myName, ByteBuffer.wrap(bPublicKey));
+        this.publicKeys.put(Blockchain.NO_ONE, new PeerKey(Blockchain.NO_ONE_SCHEME, Blockchain.NO_ONE_PUB_KEY));
+        this.publicKeys.put(myName, new PeerKey(this.scheme, bPublicKey));
         // initialize the blockchain
-        this.blockchain = new Blockchain(name);
+        this.blockchain = new Blockchain(name, NUMBER_OF_ZEROS);
     }
 
     /**
@@ -88,6 +87,14 @@ public class Wallet extends Peer {
         return bPublicKey;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected byte getSignatureScheme () {
+        return scheme.getId();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -104,28 +111,33 @@ public class Wallet extends Peer {
      * {@inheritDoc}
      */
     @Override
-    protected void newPublicKey (String name, byte[] publicKey) {
-        publicKeys.put(name, ByteBuffer.wrap(publicKey));
+    public void shutdown () throws InterruptedException {
+        super.shutdown();
+        blockchain.close();
     }
 
     /**
      * {@inheritDoc}
-     * <p>
-     * synchronized to protect enc from changing while processing
      */
     @Override
-    protected synchronized byte[] signMsg (byte[] bytes) {
-        return KeyUtils.signMsg(enc, bytes);
+    protected void newPublicKey (String name, byte schemeId, byte[] publicKey) {
+        final SignatureScheme peerScheme = KeyUtils.getScheme(schemeId);
+        if (peerScheme == null) {
+            System.err.println(myName + " Ignoring the public key of '" + name + "', unknown signature scheme=" + schemeId);
+            return;
+        }
+        publicKeys.put(name, new PeerKey(peerScheme, publicKey));
+        keyCache.invalidate(name);
     }
 
     /**
      * {@inheritDoc}
      * <p>
-     * synchronized to protect keyfactory/dec from changing while processing
+     * synchronized to protect enc from changing while processing
      */
     @Override
-    protected synchronized boolean verifyMsg (byte[] publicKey, byte[] signature, byte[] bytes) {
-        return KeyUtils.verifyMsg(keyFactory, dec, publicKey, signature, bytes);
+    protected synchronized byte[] signMsg (byte[] bytes) {
+        return KeyUtils.signMsg(enc, bytes);
     }
 
     // synchronized to protect the blockchain from changing while processing
@@ -133,9 +145,7 @@ public class Wallet extends Peer {
         // Iterate through the our unused transactions to see if we have enough coins
         final List<Transaction> inputList = new ArrayList<Transaction>();
         int coins = 0;
-        for (Transaction t : this.blockchain.getUnused()) {
-            if (!(t.getDestinatario().equals(myName)))
-                continue;
+        for (Transaction t : this.blockchain.getUnused(myName)) {
             coins += t.getValore();
             inputList.add(t);
             if (coins >= value)
@@ -183,9 +193,15 @@ public class Wallet extends Peer {
         if (!publicKeys.containsKey(dataFrom))
             return Constants.Status.NO_PUBLIC_KEY;
 
-        final byte[] key = publicKeys.get(dataFrom).array();
-        if (!verifyMsg(key, signature, bytes))
+        final PeerKey peerKey = publicKeys.get(dataFrom);
+        final ByteBuffer verified = SignatureCache.getKey(peerKey.encoded, signature, bytes);
+        if (signatures.contains(verified))
+            return Constants.Status.SUCCESS;
+
+        final PublicKey key = keyCache.get(dataFrom, peerKey.scheme, peerKey.encoded);
+        if (key == null || !peerKey.scheme.verify(key, signature, bytes))
             return Constants.Status.BAD_SIGNATURE;
+        signatures.add(verified);
 
         return Constants.Status.SUCCESS;
     }
@@ -227,8 +243,8 @@ public class Wallet extends Peer {
         Block trans = blockchain.getNextBlock(myName, transactions);
         // Need to be confirmed
         trans.setBloccoConf(false);
-        // Number of zeros in prefix of hash to compute
-        trans.setNumeroDiZeri(NUMBER_OF_ZEROS);
+        // Number of zeros in prefix of hash (or target) to compute
+        trans.setNumeroDiZeri(blockchain.getNextDifficulty());
         return trans;
     }
 
@@ -270,78 +286,96 @@ public class Wallet extends Peer {
     /**
      * {@inheritDoc}
      * <p>
-     * synchronized to protect the blockchain from changing while processing
+     * The signatures are checked in parallel without any lock, only adding the block locks the blockchain
      */
     @Override
-    protected synchronized Constants.Status handleConfirmation (String dataFrom, Block block, byte[] signature, byte[] bytes) {
+    protected Constants.Status handleConfirmation (String dataFrom, Block block, byte[] signature, byte[] bytes) {
         // Let's see if the nonce was computed correctly
-        final boolean nonceComputedCorrectly = ProofOfWork.check(block.getHash(), (int) block.getNonce(), block.getNumeroDiZeri());
+        final boolean nonceComputedCorrectly = ProofOfWork.check(block.getPowHash(), block.getNonce(), block.getNumeroDiZeri());
         if (!nonceComputedCorrectly) {
             if (DEBUG)
                 System.err.println(myName + " handleConfirmation() from '" + dataFrom + "' Nonce was not computed correctly. block={\n" + block.toString() + "\n}");
             return Constants.Status.INCORRECT_NONCE;
         }
 
-        // Check signature on the block
-        final Constants.Status status = checkSignature(dataFrom, signature, bytes);
-        if (status != Constants.Status.SUCCESS) {
-            if (DEBUG)
-                System.err.println(myName + " handleConfirmation() from '" + dataFrom + "' status=" + status + "\n" + "block={\n" + block.toString() + "\n}\n");
-            return status;
+        // Signature on the block, then on every aggregate transaction and its inputs/outputs
+        final List<SignatureCheck> checks = new ArrayList<SignatureCheck>();
+        checks.add(new SignatureCheck(dataFrom, dataFrom, signature, bytes, block));
+        for (Transaction trans : block.getTransazioni()) {
+            checks.add(new SignatureCheck(dataFrom, trans));
+            for (Transaction i : trans.inputs)
+                checks.add(new SignatureCheck(dataFrom, i));
+            for (Transaction o : trans.outputs)
+                checks.add(new SignatureCheck(dataFrom, o));
         }
+        final Constants.Status status = SignatureVerifier.verifyAll(checks);
+        if (status != Constants.Status.SUCCESS)
+            return status;
+
+        // Everything looks good to me, try and add to blockchain
+        return blockchain.addBlock(dataFrom, block);
+    }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String getUnknownSigner (Block block) {
         for (Transaction trans : block.getTransazioni()) {
-            // Check signature on the aggregate transaction and it's inputs/outputs
-            { // Check aggregate transaction
-                final String transactionFrom = trans.getMittente();
-                final byte[] transactionSignature = trans.getFirma().array();
-                final byte[] transactionBytes = trans.header.getBytes();
-                final Constants.Status transactionStatus = checkSignature(transactionFrom, transactionSignature, transactionBytes);
-                if (transactionStatus != Constants.Status.SUCCESS) {
-                    if (DEBUG)
-                        System.err.println(myName + " handleConfirmation() from '" + dataFrom + "' status=" + transactionStatus + "\n" + "transaction={\n" + trans.toString() + "\n}\n");
-                    return status;
-                }
-            }
+            if (!publicKeys.containsKey(trans.getMittente()))
+                return trans.getMittente();
+            for (Transaction i : trans.inputs)
+                if (!publicKeys.containsKey(i.getMittente()))
+                    return i.getMittente();
+            for (Transaction o : trans.outputs)
+                if (!publicKeys.containsKey(o.getMittente()))
+                    return o.getMittente();
+        }
+        return null;
+    }
 
-            { // check signature on inputs
-                for (Transaction i : trans.inputs) {
-                    final String iFrom = i.getMittente();
-                    final byte[] iSignature = i.getFirma().array();
-                    final byte[] iBytes = i.header.getBytes();
-                    final Constants.Status iStatus = checkSignature(iFrom, iSignature, iBytes);
-                    if (iStatus != Constants.Status.SUCCESS) {
-                        if (DEBUG)
-                            System.err.println(myName + " handleConfirmation() from '" + dataFrom + "' status=" + iStatus + "\n" + "transaction={\n" + i.toString() + "\n}\n");
-                        return status;
-                    }
-                }
-            }
-            { // check signature on outputs
-                for (Transaction o : trans.outputs) {
-                    final String oFrom = o.getMittente();
-                    final byte[] oSignature = o.getFirma().array();
-                    final byte[] oBytes = o.header.getBytes();
-                    final Constants.Status oStatus = checkSignature(oFrom, oSignature, oBytes);
-                    if (oStatus != Constants.Status.SUCCESS) {
-                        if (DEBUG)
-                            System.err.println(myName + " handleConfirmation() from '" + dataFrom + "' status=" + oStatus + "\n" + "transaction={\n" + o.toString() + "\n}\n");
-                        return status;
-                    }
-                }
-            }
+    /** One signature of a confirmed block, checked on the verifier pool **/
+    private final class SignatureCheck implements Callable<Constants.Status> {
+
+        private final String dataFrom;
+        private final String from;
+        private final byte[] signature;
+        private final byte[] bytes;
+        private final Object signed;
+
+        private SignatureCheck (String dataFrom, Transaction transaction) {
+            this(dataFrom, transaction.getMittente(), transaction.getFirma().array(), transaction.header.getBytes(), transaction);
         }
 
-        // Everything looks good to me, try and add to blockchain
-        return blockchain.addBlock(dataFrom, block);
+        private SignatureCheck (String dataFrom, String from, byte[] signature, byte[] bytes, Object signed) {
+            this.dataFrom = dataFrom;
+            this.from = from;
+            this.signature = signature;
+            this.bytes = bytes;
+            this.signed = signed;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Constants.Status call () {
+            Constants.Status status = checkSignature(from, signature, bytes);
+            // the sender's key is known (it signed the message), only the inner transaction's signer is missing
+            if (status == Constants.Status.NO_PUBLIC_KEY && !from.equals(dataFrom))
+                status = Constants.Status.NO_SIGNER_KEY;
+            if (status != Constants.Status.SUCCESS && DEBUG)
+                System.err.println(myName + " handleConfirmation() from '" + dataFrom + "' status=" + status + "\n" + "signed={\n" + signed.toString() + "\n}\n");
+            return status;
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    protected int mineHash (MiningTask task, byte[] sha256, long numberOfZerosInPrefix) {
-        final int nonce = ProofOfWork.solve(task, sha256, numberOfZerosInPrefix);
+    protected long mineHash (MiningTask task, byte[] sha256, long numberOfZerosInPrefix) {
+        final long nonce = ProofOfWork.solve(task, sha256, numberOfZerosInPrefix);
         if (DEBUG) {
             String status = "CANCELLED";
             if (nonce >= 0)
@@ -351,6 +385,18 @@ public class Wallet extends Peer {
         return nonce;
     }
 
+    /** A peer's encoded public key, and the scheme it belongs to **/
+    private static final class PeerKey {
+
+        private final SignatureScheme scheme;
+        private final byte[] encoded;
+
+        private PeerKey (SignatureScheme scheme, byte[] encoded) {
+            this.scheme = scheme;
+            this.encoded = encoded;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
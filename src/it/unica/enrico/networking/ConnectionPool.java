@@ -0,0 +1,130 @@
+package it.unica.enrico.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Outgoing TCP connections kept open and reused, one per destination host:port. Every message is written as a
+ * length prefixed frame (see {@link TCP#sendData(SocketChannel, ByteBuffer)}) so any number of messages can
+ * share a connection. Connections which have not been used for 'tcp_idle_timeout' ms are closed.
+ */
+public class ConnectionPool {
+
+    private static final boolean DEBUG = Boolean.getBoolean("debug_all");
+    static final long IDLE_TIMEOUT = Long.getLong("tcp_idle_timeout", 30*1000);
+    // a connection unused for this long is checked before it is used again, the other side may have gone away
+    private static final long CHECK_AFTER = Long.getLong("tcp_check_after", 1000);
+
+    private final Map<String,Connection> connections = new ConcurrentHashMap<String,Connection>();
+
+    /**
+     * Send the frame between the position and the limit of 'frame' to host:port. A pooled connection which turns out
+     * to be broken is replaced by a new one and the frame sent again, once.
+     * <p>
+     * A write to a peer which restarted usually succeeds into the kernel buffer and only a later one fails, so that
+     * frame would be lost. A connection idle for more than 'tcp_check_after' ms is checked for the other side's close
+     * before it is used.
+     */
+    public void send(String host, int port, ByteBuffer frame) throws IOException {
+        final int start = frame.position();
+        final String key = host+":"+port;
+        Connection connection = connections.get(key);
+        if (connection != null && !connection.isOpen()) {
+            if (DEBUG)
+                System.out.println("Reconnecting to "+key+", closed by the other side.");
+            close(key, connection);
+            connection = null;
+        }
+        if (connection != null) {
+            try {
+                connection.send(frame);
+                return;
+            } catch (IOException e) {
+                // the other side closed it or the connection was reset, reconnect below
+                if (DEBUG)
+                    System.out.println("Reconnecting to "+key+". "+e);
+                close(key, connection);
+                frame.position(start);
+            }
+        }
+        connection = new Connection(TCP.createClient(host, port));
+        connections.put(key, connection);
+        connection.send(frame);
+    }
+
+    /** Close the connections which have been idle for longer than the timeout **/
+    public void evictIdle() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String,Connection>> it = connections.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String,Connection> entry = it.next();
+            if (now - entry.getValue().lastUsed < IDLE_TIMEOUT)
+                continue;
+            if (DEBUG)
+                System.out.println("Closing idle connection to "+entry.getKey());
+            it.remove();
+            entry.getValue().close();
+        }
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public void closeAll() {
+        for (Map.Entry<String,Connection> entry : connections.entrySet())
+            close(entry.getKey(), entry.getValue());
+    }
+
+    private void close(String key, Connection connection) {
+        connections.remove(key, connection);
+        connection.close();
+    }
+
+    private static final class Connection {
+
+        private final SocketChannel     channel;
+        private volatile long           lastUsed        = System.currentTimeMillis();
+
+        private Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.channel.socket().setTcpNoDelay(true);
+        }
+
+        /**
+         * False if the other side closed the connection. The receiver never writes back, so a non blocking read
+         * returns -1 (or fails) once it is gone, and 0 while it is there. Only checked after 'tcp_check_after' ms idle.
+         */
+        private synchronized boolean isOpen() {
+            if (System.currentTimeMillis() - lastUsed < CHECK_AFTER)
+                return true;
+            try {
+                channel.configureBlocking(false);
+                try {
+                    return channel.read(ByteBuffer.allocate(1)) >= 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private synchronized void send(ByteBuffer frame) throws IOException {
+            TCP.sendData(channel, frame);
+            lastUsed = System.currentTimeMillis();
+        }
+
+        private void close() {
+            try {
+                TCP.destoryClient(channel);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package it.unica.enrico.networking;
+
+import it.unica.enrico.models.Data;
+import it.unica.enrico.utils.BufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Non blocking datagram I/O shared by {@link Multicast} and {@link UDP}. The channels are registered with a selector
+ * and every wake up drains all there is to do: every queued message is sent and every pending datagram is read.
+ */
+final class Datagrams {
+
+    // how long a loop sleeps in select() before checking its 'run' flag
+    static final int SELECT_TIMEOUT = 100;
+    // room for bursts of fragments while the receiver is busy, the OS may cap it
+    static final int RECEIVE_BUFFER = Integer.getInteger("datagram_receive_buffer", 4*1024*1024);
+
+    private Datagrams() { }
+
+    /**
+     * Fragment and send 'first' and every queued message to 'target', or to its destination when 'target' is null.
+     * The encoded message comes from the shared heap pool, the datagrams from the shared direct pool, and both go
+     * back once sent.
+     */
+    static int sendAll(DatagramChannel channel, Selector selector, Data first, Queue<Data> toSend, SocketAddress target) throws IOException {
+        final BufferPool heap = BufferPool.getShared();
+        final BufferPool direct = BufferPool.getSharedDirect();
+        int sent = 0;
+        Data d = first;
+        while (d != null) {
+            final ByteBuffer bb = heap.acquire(d.getBufferLength());
+            final List<ByteBuffer> datagrams;
+            try {
+                d.toBuffer(bb);
+                bb.flip();
+                datagrams = Fragments.split(bb, direct);
+            } finally {
+                heap.release(bb);
+            }
+            try {
+                final SocketAddress to = (target != null) ? target : new InetSocketAddress(d.getIndirizzoDestinzazione(), d.getPortaDestinzazione());
+                for (ByteBuffer datagram : datagrams)
+                    send(channel, selector, datagram, to);
+            } finally {
+                for (ByteBuffer datagram : datagrams)
+                    direct.release(datagram);
+            }
+            sent++;
+            d = toSend.poll();
+        }
+        return sent;
+    }
+
+    /** Send one datagram, waiting for room in the socket buffer if the channel has none **/
+    static void send(DatagramChannel channel, Selector selector, ByteBuffer datagram, SocketAddress target) throws IOException {
+        while (channel.send(datagram, target) == 0) {
+            final SelectionKey key = channel.keyFor(selector);
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            selector.select(SELECT_TIMEOUT);
+            selector.selectedKeys().clear();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Read every pending datagram into 'buffer', and decode the messages they complete into 'toRecv'. Returns the
+     * number of messages added.
+     */
+    static int receiveAll(DatagramChannel channel, ByteBuffer buffer, Fragments.Reassembler reassembler, Queue<Data> toRecv) throws IOException {
+        int received = 0;
+        while (true) {
+            buffer.clear();
+            final SocketAddress source = channel.receive(buffer);
+            if (source == null)
+                return received;
+            buffer.flip();
+
+            // a bad datagram is dropped, it must not stop the Multicast or UDP receiver loop
+            final Data data = new Data();
+            try {
+                final ByteBuffer bb = reassembler.add(source, buffer);
+                if (bb == null)
+                    continue;
+                data.fromBuffer(bb);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Receiver dropped a message. "+e.getMessage());
+                continue;
+            } catch (BufferUnderflowException e) {
+                System.err.println("Receiver dropped a truncated message.");
+                continue;
+            } catch (RuntimeException e) {
+                System.err.println("Receiver dropped a datagram from "+source+". "+e);
+                continue;
+            }
+            toRecv.add(data);
+            received++;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package it.unica.enrico.networking;
+
+import it.unica.enrico.models.Data;
+import it.unica.enrico.utils.Threads;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+
+/**
+ * Handles the received messages off the receiver threads, so a slow handler does not stall the sockets. The
+ * messages of one sender are handled one at a time and in order (a peer's 'I am' comes before its transactions),
+ * those of different senders in parallel. At most 'dispatch_limit' messages are in flight, past that the receiver
+ * waits, which pushes back on the senders instead of queueing without bound.
+ */
+final class Dispatcher {
+
+    private static final int LIMIT = Integer.getInteger("dispatch_limit", 1024);
+    // handler threads: with virtual threads one per message in flight, else one platform thread per core
+    private static final int THREADS = Integer.getInteger("dispatch_threads", Threads.isVirtual() ? LIMIT : Runtime.getRuntime().availableProcessors());
+
+    interface Handler {
+
+        void handle(Data data);
+
+    }
+
+    private final Handler handler;
+    private final ExecutorService executor;
+    private final Semaphore permits = new Semaphore(LIMIT);
+    private final ConcurrentMap<String,Lane> lanes = new ConcurrentHashMap<String,Lane>();
+
+    Dispatcher(String name, Handler handler) {
+        this.handler = handler;
+        this.executor = Threads.newExecutor(name+" handler", THREADS);
+    }
+
+    /**
+     * Queue 'data' on its sender's lane, waits while 'dispatch_limit' messages are in flight. The message is queued
+     * atomically with the lane's lookup, so a lane which drains and is removed never loses it.
+     */
+    void dispatch(final Data data) throws InterruptedException {
+        permits.acquire();
+        final Lane lane = lanes.compute(data.getMittente(), new BiFunction<String,Lane,Lane>() {
+            @Override
+            public Lane apply(String sender, Lane lane) {
+                if (lane == null)
+                    lane = new Lane(sender);
+                lane.queue.add(data);
+                return lane;
+            }
+        });
+        lane.schedule();
+    }
+
+    /** Number of senders with messages queued or being handled **/
+    int size() {
+        return lanes.size();
+    }
+
+    /** Stop taking messages, and wait for the ones in flight to be handled **/
+    void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+            executor.shutdownNow();
+    }
+
+    /** One sender's messages, drained by at most one task at a time. Removed once drained **/
+    private final class Lane implements Runnable {
+
+        private final String sender;
+        private final Queue<Data> queue = new ConcurrentLinkedQueue<Data>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private Lane(String sender) {
+            this.sender = sender;
+        }
+
+        /** Remove this lane if it has nothing queued, atomically with dispatch() adding to it **/
+        private void removeIfEmpty() {
+            lanes.computeIfPresent(sender, new BiFunction<String,Lane,Lane>() {
+                @Override
+                public Lane apply(String sender, Lane lane) {
+                    return (lane == Lane.this && queue.isEmpty()) ? null : lane;
+                }
+            });
+        }
+
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true))
+                return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // shutting down, the queued messages are dropped and their permits given back, no task drains
+                // the lane while 'scheduled' is still ours
+                while (queue.poll() != null)
+                    permits.release();
+                scheduled.set(false);
+                removeIfEmpty();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            Data data = queue.poll();
+            while (data != null) {
+                try {
+                    handler.handle(data);
+                } catch (RuntimeException e) {
+                    System.err.println("Handler failed on a message from "+data.getMittente());
+                    e.printStackTrace();
+                } finally {
+                    permits.release();
+                }
+                data = queue.poll();
+            }
+            scheduled.set(false);
+            removeIfEmpty();
+            // a message may have been added after the last poll and before the flag was cleared
+            if (!queue.isEmpty())
+                schedule();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package it.unica.enrico.networking;
+
+import it.unica.enrico.utils.BufferPool;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Application level fragmentation for the datagram transports, so a message bigger than a packet (e.g. a confirmed
+ * block) is never left to IP fragmentation. Every fragment is
+ * <pre>
+ *     [message id:4][index:2][count:2][message length:4][payload]
+ * </pre>
+ * Fragments 0..count-1 carry the message, FRAGMENT_SIZE bytes each. When 'fec_parity' is set a parity fragment
+ * (index == count) follows, the XOR of all the payloads, which repairs one lost fragment per message.
+ * <p>
+ * There are no NACKs: the transports are fire and forget multicast, a message which loses more than the parity can
+ * repair is dropped when its reassembly times out, like a lost datagram before.
+ */
+public class Fragments {
+
+    public static final int HEADER_LENGTH = 12;
+    // Part of the protocol like the header: the receivers take the offsets and their buffer size from it, so it
+    // can't be a node setting. 1200 bytes plus the headers fit the IPv6 minimum MTU
+    public static final int FRAGMENT_SIZE = 1200;
+    public static final boolean PARITY = Boolean.getBoolean("fec_parity");
+    // biggest datagram 'split' produces
+    public static final int MAX_DATAGRAM = HEADER_LENGTH + FRAGMENT_SIZE;
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(new Random().nextInt());
+
+    private Fragments() { }
+
+    /** Split the message between the position and the limit of 'message' into datagrams **/
+    public static List<ByteBuffer> split(ByteBuffer message) {
+        return split(message, null);
+    }
+
+    /**
+     * Split the message between the position and the limit of 'message' into datagrams taken from 'pool', which the
+     * caller gives back once they are sent. Fresh heap buffers when 'pool' is null.
+     */
+    public static List<ByteBuffer> split(ByteBuffer message, BufferPool pool) {
+        final int id = NEXT_ID.getAndIncrement();
+        final int length = message.remaining();
+        final int count = Math.max(1, (length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE);
+        if (count > 0xffff)
+            throw new IllegalArgumentException("Message too big to fragment. length="+length);
+
+        final List<ByteBuffer> result = new ArrayList<ByteBuffer>(count + 1);
+        final byte[] parity = (PARITY && count > 1) ? new byte[FRAGMENT_SIZE] : null;
+        for (int i=0; i<count; i++) {
+            final int start = message.position() + (i * FRAGMENT_SIZE);
+            final int size = Math.min(FRAGMENT_SIZE, length - (i * FRAGMENT_SIZE));
+            final ByteBuffer fragment = allocate(pool, HEADER_LENGTH + size);
+            putHeader(fragment, id, i, count, length);
+            for (int j=0; j<size; j++) {
+                final byte b = message.get(start + j);
+                fragment.put(b);
+                if (parity != null)
+                    parity[j] ^= b;
+            }
+            fragment.flip();
+            result.add(fragment);
+        }
+        if (parity != null) {
+            final ByteBuffer fragment = allocate(pool, HEADER_LENGTH + FRAGMENT_SIZE);
+            putHeader(fragment, id, count, count, length);
+            fragment.put(parity);
+            fragment.flip();
+            result.add(fragment);
+        }
+        message.position(message.limit());
+        return result;
+    }
+
+    private static ByteBuffer allocate(BufferPool pool, int size) {
+        if (pool == null)
+            return ByteBuffer.allocate(size);
+        return pool.acquire(size);
+    }
+
+    private static void putHeader(ByteBuffer fragment, int id, int index, int count, int length) {
+        fragment.putInt(id);
+        fragment.putShort((short) index);
+        fragment.putShort((short) count);
+        fragment.putInt(length);
+    }
+
+    /**
+     * Collects the fragments of the messages from every sender. Incomplete messages are dropped after
+     * 'reassembly_timeout' ms, or oldest first when they hold more than 'reassembly_max_bytes'. Not thread safe, a
+     * receiver thread owns one.
+     */
+    public static final class Reassembler {
+
+        private static final long TIMEOUT = Long.getLong("reassembly_timeout", 5*1000);
+        private static final long MAX_BYTES = Long.getLong("reassembly_max_bytes", 16*1024*1024);
+
+        // insertion order is age order
+        private final Map<Key,Partial> partials = new LinkedHashMap<Key,Partial>();
+        private long bytes = 0;
+
+        /** Add a datagram from 'source', returns the whole message once its last missing piece arrives, else null **/
+        public ByteBuffer add(SocketAddress source, ByteBuffer fragment) {
+            if (fragment.remaining() < HEADER_LENGTH)
+                return null;
+            final int id = fragment.getInt();
+            final int index = fragment.getShort() & 0xffff;
+            final int count = fragment.getShort() & 0xffff;
+            final int length = fragment.getInt();
+            // only headers 'split' could have written: the length needs exactly 'count' fragments, the data
+            // fragments are 0..count-1 and index == count is the parity, which only a message of 2+ fragments has
+            if (count == 0 || length < 0 || length > ((long) count * FRAGMENT_SIZE))
+                return null;
+            if (count > 1 && length <= ((long) (count - 1) * FRAGMENT_SIZE))
+                return null;
+            if (index > count || (index == count && count == 1))
+                return null;
+
+            // the common case, nothing to put back together
+            if (count == 1) {
+                if (fragment.remaining() < length)
+                    return null;
+                final ByteBuffer message = ByteBuffer.allocate(length);
+                fragment.limit(Math.min(fragment.limit(), fragment.position() + length));
+                message.put(fragment);
+                message.flip();
+                return message;
+            }
+
+            expire();
+            final Key key = new Key(source, id);
+            Partial partial = partials.get(key);
+            if (partial == null) {
+                if (length > MAX_BYTES)
+                    return null;
+                partial = new Partial(count, length);
+                partials.put(key, partial);
+                bytes += length;
+                while (bytes > MAX_BYTES && !partials.isEmpty())
+                    drop(partials.keySet().iterator().next());
+                if (!partials.containsKey(key))
+                    return null;
+            }
+            if (partial.count != count || partial.length != length)
+                return null;
+
+            partial.add(index, fragment);
+            final ByteBuffer message = partial.complete();
+            if (message != null)
+                drop(key);
+            return message;
+        }
+
+        public int size() {
+            return partials.size();
+        }
+
+        private void expire() {
+            final long now = System.currentTimeMillis();
+            final Iterator<Map.Entry<Key,Partial>> it = partials.entrySet().iterator();
+            while (it.hasNext()) {
+                final Partial partial = it.next().getValue();
+                if (now - partial.created < TIMEOUT)
+                    break;
+                it.remove();
+                bytes -= partial.length;
+            }
+        }
+
+        private void drop(Key key) {
+            final Partial partial = partials.remove(key);
+            if (partial != null)
+                bytes -= partial.length;
+        }
+    }
+
+    private static final class Key {
+
+        private final SocketAddress source;
+        private final int id;
+
+        private Key(SocketAddress source, int id) {
+            this.source = source;
+            this.id = id;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return (31 * source.hashCode()) + id;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            final Key k = (Key) o;
+            return id == k.id && source.equals(k.source);
+        }
+    }
+
+    private static final class Partial {
+
+        private final long created = System.currentTimeMillis();
+        private final int count;
+        private final int length;
+        private final byte[] message;
+        private final boolean[] received;
+        private byte[] parity = null;
+        private int missing;
+
+        private Partial(int count, int length) {
+            this.count = count;
+            this.length = length;
+            this.message = new byte[length];
+            this.received = new boolean[count];
+            this.missing = count;
+        }
+
+        private void add(int index, ByteBuffer fragment) {
+            if (index == count) {
+                if (parity == null) {
+                    parity = new byte[FRAGMENT_SIZE];
+                    fragment.get(parity, 0, Math.min(FRAGMENT_SIZE, fragment.remaining()));
+                }
+                return;
+            }
+            if (received[index])
+                return;
+            final int start = index * FRAGMENT_SIZE;
+            final int size = Math.min(FRAGMENT_SIZE, length - start);
+            if (fragment.remaining() < size)
+                return;
+            fragment.get(message, start, size);
+            received[index] = true;
+            missing--;
+        }
+
+        /** The message if every fragment is here, or can be rebuilt from the parity **/
+        private ByteBuffer complete() {
+            if (missing == 1 && parity != null)
+                repair();
+            if (missing > 0)
+                return null;
+            return ByteBuffer.wrap(message);
+        }
+
+        private void repair() {
+            int lost = 0;
+            while (received[lost])
+                lost++;
+            final byte[] rebuilt = parity.clone();
+            for (int i=0; i<count; i++) {
+                if (i == lost)
+                    continue;
+                final int start = i * FRAGMENT_SIZE;
+                final int size = Math.min(FRAGMENT_SIZE, length - start);
+                for (int j=0; j<size; j++)
+                    rebuilt[j] ^= message[start + j];
+            }
+            final int start = lost * FRAGMENT_SIZE;
+            System.arraycopy(rebuilt, 0, message, start, Math.min(FRAGMENT_SIZE, length - start));
+            received[lost] = true;
+            missing--;
+        }
+    }
+}
@@ -7,8 +7,15 @@ import it.unica.enrico.models.Data;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Enumeration;
 import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class Multicast {
 
@@ -16,78 +23,92 @@ public class Multicast {
     static final int PORT = 5000;
     static final String GROUP = "225.4.5.6";
 
-    public static MulticastSocket createReceiver() throws IOException {
-        // Create the socket and bind it to port 'port'.
-        final MulticastSocket s = new MulticastSocket(PORT);
-        // join the multicast group
-        s.joinGroup(InetAddress.getByName(GROUP));
-        // Now the socket is set up and we are ready to receive packets
-        return s;
-    }
-
-    public static void destoryReceiver(MulticastSocket s) throws UnknownHostException, IOException {
-        if (s == null)
-            return;
-
-        // Leave the multicast group and close the socket
-        s.leaveGroup(InetAddress.getByName(GROUP));
-        s.close();
-    }
-
     /**
-     * Blocking call
+     * Network interface used for the group: the one named by the 'multicast_interface' property, else the first
+     * interface which is up, non loopback and supports multicast, else the loopback interface.
      */
-    public static boolean recvData(MulticastSocket s, byte[] buffer) throws IOException {
-        s.setSoTimeout(100);
-        // Create a DatagramPacket and do a receive
-        final DatagramPacket pack = new DatagramPacket(buffer, buffer.length);
-        try {
-            s.receive(pack);
-        } catch (SocketTimeoutException e) {
-            return false;
+    public static NetworkInterface getInterface() throws IOException {
+        final String name = System.getProperty("multicast_interface");
+        if (name != null) {
+            final NetworkInterface named = NetworkInterface.getByName(name);
+            if (named == null)
+                throw new SocketException("No network interface named '"+name+"'");
+            return named;
+        }
+        NetworkInterface loopback = null;
+        final Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            final NetworkInterface candidate = interfaces.nextElement();
+            if (!candidate.isUp())
+                continue;
+            if (candidate.isLoopback()) {
+                loopback = candidate;
+                continue;
+            }
+            if (candidate.supportsMulticast() && candidate.getInetAddresses().hasMoreElements())
+                return candidate;
         }
-        // We have finished receiving data
-        return true;
+        if (loopback == null)
+            throw new SocketException("No network interface for multicast");
+        return loopback;
     }
 
-    public static MulticastSocket createSender() throws IOException {
-        // Create the socket but we don't bind it as we are only going to send data
-        // Note that we don't have to join the multicast group if we are only
-        // sending data and not receiving
-        return new MulticastSocket();
+    public static DatagramChannel createReceiver(Selector selector) throws IOException {
+        // Create the channel and bind it to port 'PORT', every peer on this host binds the same port
+        final DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, Datagrams.RECEIVE_BUFFER);
+        channel.bind(new InetSocketAddress(PORT));
+        // join the multicast group
+        channel.join(InetAddress.getByName(GROUP), getInterface());
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        // Now the channel is set up and we are ready to receive packets
+        return channel;
     }
 
-    public static void destroySender(MulticastSocket s) throws IOException {
-        if (s == null)
+    public static void destoryReceiver(DatagramChannel channel) throws IOException {
+        if (channel == null)
             return;
 
-        // When we have finished sending data close the socket
-        s.close();
+        // Closing the channel leaves the multicast group
+        channel.close();
+    }
+
+    public static DatagramChannel createSender(Selector selector, int ttl) throws IOException {
+        // The channel is not bound to the group port as we are only going to send data
+        final DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, getInterface());
+        // set once, every datagram goes out with our TTL
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+        channel.configureBlocking(false);
+        channel.register(selector, 0);
+        return channel;
     }
 
-    public static void sendData(MulticastSocket s, int ourTTL, byte[] buffer) throws IOException {
-        // Create a DatagramPacket
-        final DatagramPacket pack = new DatagramPacket(buffer, buffer.length, InetAddress.getByName(GROUP), PORT);
-        // Get the current TTL, set our TTL, do a send, reset the TTL
-        final int ttl = s.getTimeToLive();
-        s.setTimeToLive(ourTTL);
-        s.send(pack);
-        s.setTimeToLive(ttl);
+    public static void destroySender(DatagramChannel channel) throws IOException {
+        if (channel == null)
+            return;
+
+        // When we have finished sending data close the channel
+        channel.close();
     }
 
     public static final class Peer {
 
-        private static final int BUFFER_SIZE = 100*1024;
+        // one fragment, see Fragments
+        private static final int BUFFER_SIZE = Fragments.MAX_DATAGRAM;
 
         public static final class RunnableRecv implements Runnable, Receiver {
 
-            static volatile boolean run = true;
+            private volatile boolean run = true;
             final ConcurrentLinkedQueue<Data> toRecv = new ConcurrentLinkedQueue<Data>();
             private final MessageListener listener;
+            private volatile Selector selector = null;
             private volatile boolean isReady = false;
+            private final CountDownLatch ready = new CountDownLatch(1);
 
             public RunnableRecv(MessageListener listener) {
-                run = true;
                 this.listener = listener;
             }
 
@@ -107,6 +128,26 @@ public class Multicast {
                 return isReady;
             }
 
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean awaitReady() throws InterruptedException {
+                ready.await();
+                return isReady;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void shutdown() {
+                run = false;
+                final Selector current = selector;
+                if (current != null)
+                    current.wakeup();
+            }
+
             /**
              * {@inheritDoc}
              */
@@ -128,45 +169,36 @@ public class Multicast {
              */
             @Override
             public void run() {
-                MulticastSocket s = null;
+                DatagramChannel s = null;
                 try {
                     if (DEBUG)
                         System.out.println("Creating receiver");
-                    s = Multicast.createReceiver();
-                    final byte[] array = new byte[BUFFER_SIZE];
-                    final ByteBuffer bb = ByteBuffer.wrap(array);
+                    selector = Selector.open();
+                    s = Multicast.createReceiver(selector);
+                    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    final Fragments.Reassembler reassembler = new Fragments.Reassembler();
                     isReady = true;
+                    ready.countDown();
                     while (run) {
-                        bb.clear();
-                        final boolean p = Multicast.recvData(s, array);
-                        if (!p) {
-                            Thread.yield();
+                        if (selector.select(Datagrams.SELECT_TIMEOUT) == 0)
                             continue;
-                        }
-
-                        final Data data = new Data();
-                        data.fromBuffer(bb);
+                        selector.selectedKeys().clear();
 
+                        // every pending datagram, then one listener call for all the messages they completed
+                        final int received = Datagrams.receiveAll(s, buffer, reassembler, toRecv);
                         if (DEBUG)
-                            System.out.println("Il server ha ricevuto '"+
-                                    new String(data.getMessaggio().array())+
-                                    "' da "+data.getIndirizzoSorgente().getHostAddress()+":"+
-                                    data.getPortaSorgente());
-
-                        toRecv.add(data);
-                        listener.onMessage(this);
-
-                        Thread.yield();
+                            System.out.println("Il server ha ricevuto "+received+" messaggi");
+                        if (received > 0)
+                            listener.onMessage(this);
                     }
-                } catch (SocketException e) {
-                    e.printStackTrace();
                 } catch (IOException e) {
                     e.printStackTrace();
                 } finally {
+                    ready.countDown();
                     try {
                         Multicast.destoryReceiver(s);
-                    } catch (UnknownHostException e) {
-                        e.printStackTrace();
+                        if (selector != null)
+                            selector.close();
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
@@ -177,13 +209,13 @@ public class Multicast {
         public static final class RunnableSend implements Runnable, Sender {
 
             private static final int ttl = 1;
-            static volatile boolean run = true;
-            final ConcurrentLinkedQueue<Data> toSend = new ConcurrentLinkedQueue<Data>();
+            private volatile boolean run = true;
+            final BlockingQueue<Data> toSend = new LinkedBlockingQueue<Data>();
             private volatile boolean isReady = false;
+            private final CountDownLatch ready = new CountDownLatch(1);
+            private volatile Thread thread = null;
 
-            public RunnableSend() {
-                run = true;
-            }
+            public RunnableSend() { }
 
             /**
              * {@inheritDoc}
@@ -201,45 +233,60 @@ public class Multicast {
                 return isReady;
             }
 
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean awaitReady() throws InterruptedException {
+                ready.await();
+                return isReady;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void shutdown() {
+                run = false;
+                // wake it up from waiting on the queue
+                final Thread current = thread;
+                if (current != null)
+                    current.interrupt();
+            }
+
             /**
              * {@inheritDoc}
              */
             @Override
             public void run() {
-                MulticastSocket s = null;
+                DatagramChannel s = null;
+                Selector selector = null;
+                thread = Thread.currentThread();
                 try {
                     if (DEBUG)
                         System.out.println("Creating sender");
-                    s = Multicast.createSender();
-                    final byte[] buffer = new byte[BUFFER_SIZE];
-                    final ByteBuffer bb = ByteBuffer.wrap(buffer);
+                    selector = Selector.open();
+                    s = Multicast.createSender(selector, ttl);
+                    final InetSocketAddress group = new InetSocketAddress(InetAddress.getByName(GROUP), PORT);
                     isReady = true;
+                    ready.countDown();
                     while (run) {
-                        if (DEBUG && toSend.size()>1)
-                            System.out.println("Client toSend size="+toSend.size());
-                        final Data d = toSend.poll();
-                        if (d != null) {
-                            bb.clear();
-                            d.toBuffer(bb);
-                            bb.flip();
-
-                            if (DEBUG)
-                                System.out.println("Il client ("+d.getIndirizzoSorgente().getHostAddress()+":"+
-                                        d.getPortaSorgente()+") " + "ha inviato '"+new String(d.getMessaggio()
-                                        .array())+"'");
-
-                            Multicast.sendData(s, ttl, buffer);
-                        }
-
-                        Thread.yield();
+                        // sleep until something is queued, then send it and everything queued since the last pass
+                        final Data first = toSend.take();
+                        if (DEBUG && toSend.size()>0)
+                            System.out.println("Client toSend size="+(toSend.size()+1));
+                        Datagrams.sendAll(s, selector, first, toSend, group);
                     }
-                } catch (SocketException e) {
-                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    // shutdown
                 } catch (IOException e) {
                     e.printStackTrace();
                 } finally {
+                    ready.countDown();
                     try {
                         Multicast.destroySender(s);
+                        if (selector != null)
+                            selector.close();
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
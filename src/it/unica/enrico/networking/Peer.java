@@ -1,5 +1,6 @@
 package it.unica.enrico.networking;
 
+import it.unica.enrico.interfaces.MessageHandler;
 import it.unica.enrico.interfaces.MessageListener;
 import it.unica.enrico.interfaces.Receiver;
 import it.unica.enrico.models.Block;
@@ -8,6 +9,7 @@ import it.unica.enrico.models.Data;
 import it.unica.enrico.models.Transaction;
 import it.unica.enrico.utils.Constants;
 import it.unica.enrico.utils.HashUtils;
+import it.unica.enrico.utils.Threads;
 
 import java.nio.ByteBuffer;
 import java.util.Map;
@@ -16,19 +18,24 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public abstract class Peer {
 
     protected static final boolean                DEBUG                         = Boolean.getBoolean("debug");
-    private static final int                      HEADER_LENGTH                 = 16;
-    private static final String                   WHOIS                         = "Who is          ";
-    private static final String                   IAM                           = "I am            ";
-    private static final String                   TRANSACTION                   = "Transaction     ";
-    private static final String                   TRANSACTION_ACK               = "Transaction ACK ";
-    private static final String                   BLOCK                         = "Block           ";
-    private static final String                   CONFIRMATION                  = "Block Confirm   ";
-    private static final String                   RESEND                        = "Resend          ";
-    private static final String                   REHASH                        = "Rehash          ";
+    // Every message starts with [version][opcode], the handler for the opcode decodes the rest
+    private static final byte                     ENVELOPE_VERSION              = 1;
+    public static final int                       HEADER_LENGTH                 = 2;
+    public static final byte                      WHOIS                         = 1;
+    public static final byte                      IAM                           = 2;
+    public static final byte                      TRANSACTION                   = 3;
+    public static final byte                      TRANSACTION_ACK               = 4;
+    public static final byte                      BLOCK                         = 5;
+    public static final byte                      CONFIRMATION                  = 6;
+    public static final byte                      RESEND                        = 7;
+    public static final byte                      REHASH                        = 8;
+    private static final int                      SCHEME_LENGTH                 = 1;
     private static final int                      KEY_LENGTH                    = 4;
     private static final int                      NAME_LENGTH                   = 4;
     private static final String                   EVERY_ONE                     = "EVERYONE";
@@ -42,53 +49,36 @@ public abstract class Peer {
          */
         @Override
         public void onMessage(Receiver recv) {
+            // never handled on the receiver's thread, one slow handler would stall every connection it reads
             Data data = recv.getQueue().poll();
             while (data != null) {
-                final String from = data.getMittente();
-
-                final byte[] bytes = data.getMessaggio().array();
-                final String string = new String(bytes);
-                final String hdr = string.substring(0, HEADER_LENGTH);
-                if (DEBUG)
-                    System.out.println(myName+" Listener received '"+hdr+"' msg");
-                if (hdr.equals(WHOIS)) {
-                    handleWhois(bytes,data);
-                } else if (hdr.equals(IAM)) {
-                    handleIam(bytes,data);
-                    processTransactionsToSend(from);
-                    processTransactionsToRecv(from);
-                } else if (hdr.equals(TRANSACTION)) {
-                    handleTransaction(from,bytes,data);
-                } else if (hdr.equals(TRANSACTION_ACK)) {
-                    handleTransactionAck(from,bytes,data);
-                } else if (hdr.equals(BLOCK)) {
-                    handleBlock(from,bytes,data);
-                } else if (hdr.equals(CONFIRMATION)) {
-                    handleConfirmation(from,bytes,data);
-                    processFutureBlocksToRecv(from);
-                } else if (hdr.equals(RESEND)) {
-                    handleResend(from,bytes,data);
-                } else if (hdr.equals(REHASH)) {
-                    handleRehash(from,bytes,data);
-                } else {
-                    System.err.println(myName+" Cannot handle msg. hdr="+hdr);
+                try {
+                    dispatcher.dispatch(data);
+                } catch (InterruptedException e) {
+                    // shutting down
+                    Thread.currentThread().interrupt();
+                    return;
                 }
 
                 // Get next message
                 data = recv.getQueue().poll();
-                Thread.yield();
             }
-            Thread.yield();
         }
     };
 
+    // Opcode -> handler
+    private final AtomicReferenceArray<MessageHandler> handlers = new AtomicReferenceArray<MessageHandler>(256);
+
+    // Runs the handlers off the receiver threads
+    private final Dispatcher dispatcher;
+
     // Keep track of everyone's name -> ip+port
     private final Map<String,Host> peers = new ConcurrentHashMap<String,Host>();
 
     // Pending msgs (This happens if we don't know the ip+port OR the public key of a host
-    private final Map<String,Queue<Queued>> transactionsToSend = new ConcurrentHashMap<String,Queue<Queued>>();
-    private final Map<String,Queue<Queued>> transactionsToRecv = new ConcurrentHashMap<String,Queue<Queued>>();
-    private final Map<String,Queue<Queued>> futureTransactionsToRecv = new ConcurrentHashMap<String,Queue<Queued>>();
+    private final ConcurrentMap<String,Queue<Queued>> transactionsToSend = new ConcurrentHashMap<String,Queue<Queued>>();
+    private final ConcurrentMap<String,Queue<Queued>> transactionsToRecv = new ConcurrentHashMap<String,Queue<Queued>>();
+    private final ConcurrentMap<String,Queue<Queued>> futureTransactionsToRecv = new ConcurrentHashMap<String,Queue<Queued>>();
 
     private final Map<String,TimerTask> timerMap  = new ConcurrentHashMap<String,TimerTask>();
     private final Timer timer = new Timer();
@@ -108,25 +98,35 @@ public abstract class Peer {
 
     protected Peer(String name) {
         this.myName = name;
+        registerHandlers();
+
+        // Handlers, on their own threads
+        dispatcher = new Dispatcher(myName, new Dispatcher.Handler() {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void handle(Data data) {
+                Peer.this.handle(data);
+            }
+        });
 
         // Receivers
-        tcpRecvThread = new Thread(runnableRecvTcp, myName+" recvTcp");
-        tcpRecvThread.start();
-
-        multiRecvThread = new Thread(runnableRecvMulti, myName+" recvMulti");
-        multiRecvThread.start();
+        tcpRecvThread = Threads.start(runnableRecvTcp, myName+" recvTcp");
+        multiRecvThread = Threads.start(runnableRecvMulti, myName+" recvMulti");
 
         // Senders
-        tcpSendThread = new Thread(runnableSendTcp, myName+" sendTcp");
         sendTcpQueue = runnableSendTcp.getQueue();
-        tcpSendThread.start();
+        tcpSendThread = Threads.start(runnableSendTcp, myName+" sendTcp");
 
-        multiSendThread = new Thread(runnableSendMulti, myName+" sendMulti");
         sendMultiQueue = runnableSendMulti.getQueue();
-        multiSendThread.start();
+        multiSendThread = Threads.start(runnableSendMulti, myName+" sendMulti");
 
-        while (isReady()==false) {
-            Thread.yield();
+        try {
+            if (!awaitReady())
+                System.err.println(myName+" Could not start the transports.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -134,28 +134,133 @@ public abstract class Peer {
         return myName;
     }
 
-    public void shutdown() throws InterruptedException {
-        TCP.Peer.RunnableSend.run = false;
-        TCP.Peer.RunnableRecv.run = false;
+    /**
+     * Handle messages of type 'opcode' with 'handler' from now on, in place of the current handler if there is one.
+     * Returns the handler it replaced, or null.
+     */
+    public MessageHandler registerHandler(byte opcode, MessageHandler handler) {
+        return handlers.getAndSet(opcode & 0xff, handler);
+    }
+
+    private void registerHandlers() {
+        registerHandler(WHOIS, new MessageHandler() {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onMessage(Data data, byte[] bytes) {
+                handleWhois(bytes,data);
+            }
+        });
+        registerHandler(IAM, new MessageHandler() {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onMessage(Data data, byte[] bytes) {
+                handleIam(bytes,data);
+                processTransactionsToSend(data.getMittente());
+                processTransactionsToRecv(data.getMittente());
+            }
+        });
+        registerHandler(TRANSACTION, new MessageHandler() {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onMessage(Data data, byte[] bytes) {
+                handleTransaction(data.getMittente(),bytes,data);
+            }
+        });
+        registerHandler(TRANSACTION_ACK, new MessageHandler() {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onMessage(Data data, byte[] bytes) {
+                handleTransactionAck(data.getMittente(),bytes,data);
+            }
+        });
+        registerHandler(BLOCK, new MessageHandler() {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onMessage(Data data, byte[] bytes) {
+                handleBlock(data.getMittente(),bytes,data);
+            }
+        });
+        registerHandler(CONFIRMATION, new MessageHandler() {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onMessage(Data data, byte[] bytes) {
+                handleConfirmation(data.getMittente(),bytes,data);
+                processFutureBlocksToRecv(data.getMittente());
+            }
+        });
+        registerHandler(RESEND, new MessageHandler() {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onMessage(Data data, byte[] bytes) {
+                handleResend(data.getMittente(),bytes,data);
+            }
+        });
+        registerHandler(REHASH, new MessageHandler() {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onMessage(Data data, byte[] bytes) {
+                handleRehash(data.getMittente(),bytes,data);
+            }
+        });
+    }
+
+    private void handle(Data data) {
+        final byte[] bytes = data.getMessaggio().array();
+        if (bytes.length < HEADER_LENGTH || bytes[0] != ENVELOPE_VERSION) {
+            System.err.println(myName+" Cannot handle msg from "+data.getMittente()+", unknown envelope. length="+bytes.length);
+            return;
+        }
+
+        final MessageHandler handler = handlers.get(bytes[1] & 0xff);
+        if (DEBUG)
+            System.out.println(myName+" Listener received '"+getMsgType(bytes)+"' msg");
+        if (handler == null) {
+            System.err.println(myName+" Cannot handle msg. opcode="+bytes[1]);
+            return;
+        }
+        handler.onMessage(data, bytes);
+    }
 
-        Multicast.Peer.RunnableSend.run = false;
-        Multicast.Peer.RunnableRecv.run = false;
+    public void shutdown() throws InterruptedException {
+        // Only this peer's transports, other peers in the same process keep running
 
         // Senders
 
-        multiSendThread.interrupt();
+        runnableSendMulti.shutdown();
+        runnableSendTcp.shutdown();
         multiSendThread.join();
-
-        tcpSendThread.interrupt();
         tcpSendThread.join();
 
         // Receivers
 
-        tcpRecvThread.interrupt();
+        runnableRecvTcp.shutdown();
+        runnableRecvMulti.shutdown();
         tcpRecvThread.join();
-
-        multiRecvThread.interrupt();
         multiRecvThread.join();
+
+        // Handlers, after the receivers so nothing new comes in
+        dispatcher.shutdown();
+
+        // Miners, the timer thread would keep the process alive
+        for (TimerTask task : timerMap.values())
+            task.cancel();
+        timer.cancel();
     }
 
     public boolean isReady() {
@@ -163,19 +268,30 @@ public abstract class Peer {
                 runnableRecvMulti.isReady() && runnableSendMulti.isReady());
     }
 
+    /** Block until every transport has started, or failed to. Returns isReady() **/
+    public boolean awaitReady() throws InterruptedException {
+        runnableRecvTcp.awaitReady();
+        runnableSendTcp.awaitReady();
+        runnableRecvMulti.awaitReady();
+        runnableSendMulti.awaitReady();
+        return isReady();
+    }
+
     public abstract Blockchain getBlockChain();
 
     /** Get encoded public key **/
     protected abstract byte[] getPublicKey();
 
+    /** Id of the signature scheme of the public key, see KeyUtils **/
+    protected abstract byte getSignatureScheme();
+
     private void sendWhois(String who) {
         final byte[] msg = getWhoisMsg(who);
         final Data data = new Data(myName, runnableRecvTcp.getHost(), runnableRecvTcp.getPort(),
                                    EVERY_ONE, runnableRecvMulti.getHost(), runnableRecvMulti.getPort(),
                                    NO_SIG, msg);
         if (DEBUG) {
-            final String string = new String(msg);
-            final String hdr = string.substring(0, HEADER_LENGTH);
+            final String hdr = getMsgType(msg);
             System.out.println(myName+" Invio '"+hdr+"' msg");
         }
         sendMultiQueue.add(data);
@@ -190,13 +306,12 @@ public abstract class Peer {
     }
 
     private void sendIam() {
-        final byte[] msg = getIamMsg(getPublicKey());
+        final byte[] msg = getIamMsg(getSignatureScheme(), getPublicKey());
         final Data data = new Data(myName, runnableRecvTcp.getHost(), runnableRecvTcp.getPort(),
                                    EVERY_ONE, runnableRecvMulti.getHost(), runnableRecvMulti.getPort(),
                                    NO_SIG, msg);
         if (DEBUG) {
-            final String string = new String(msg);
-            final String hdr = string.substring(0, HEADER_LENGTH);
+            final String hdr = getMsgType(msg);
             System.out.println(myName+" Invio '"+hdr+"' msg");
         }
         sendMultiQueue.add(data);
@@ -204,24 +319,22 @@ public abstract class Peer {
 
     private void handleIam(byte[] bytes, Data data) {
         final String name = data.getMittente();
+        final byte scheme = parseIamScheme(bytes);
         final byte[] key = parseIamMsg(bytes);
 
         // Update peers
         peers.put(name, new Host(data.getIndirizzoSorgente().getHostAddress(), data.getPortaSorgente()));
 
         // New public key
-        newPublicKey(name, key);
+        newPublicKey(name, scheme, key);
     }
 
     /** What do you want to do with a new public key **/
-    protected abstract void newPublicKey(String name, byte[] publicKey);
+    protected abstract void newPublicKey(String name, byte scheme, byte[] publicKey);
 
     /** Sign message with private key **/
     protected abstract byte[] signMsg(byte[] bytes);
 
-    /** Verify the bytes given the public key and signature **/
-    protected abstract boolean verifyMsg(byte[] publicKey, byte[] signature, byte[] bytes);
-
     /** Send transaction to the peer named 'to' **/
     protected void sendTransaction(String to, Transaction transaction) {
         final Host d = peers.get(to);
@@ -236,8 +349,7 @@ public abstract class Peer {
         final byte[] sig = signMsg(msg);
         final Data data = new Data(myName, runnableRecvTcp.getHost(), runnableRecvTcp.getPort(), to, d.ip, d.port, sig, msg);
         if (DEBUG) {
-            final String string = new String(msg);
-            final String hdr = string.substring(0, HEADER_LENGTH);
+            final String hdr = getMsgType(msg);
             System.out.println(myName+" Sending '"+hdr+"' msg");
         }
         sendTcpQueue.add(data);
@@ -285,8 +397,7 @@ public abstract class Peer {
         final byte[] sig = signMsg(msg);
         final Data data = new Data(myName, runnableRecvTcp.getHost(), runnableRecvTcp.getPort(), to, d.ip, d.port, sig, msg);
         if (DEBUG) {
-            final String string = new String(msg);
-            final String hdr = string.substring(0, HEADER_LENGTH);
+            final String hdr = getMsgType(msg);
             System.out.println(myName+" Sending '"+hdr+"' msg");
         }
         sendTcpQueue.add(data);
@@ -325,8 +436,7 @@ public abstract class Peer {
         final Data dataToSend = new Data(myName, runnableRecvTcp.getHost(), runnableRecvTcp.getPort(), data.getMittente(), data.getIndirizzoSorgente().getHostAddress(), data
                 .getPortaSorgente(), sig, msg);
         if (DEBUG) {
-            final String string = new String(msg);
-            final String hdr = string.substring(0, HEADER_LENGTH);
+            final String hdr = getMsgType(msg);
             System.out.println(myName+" Sending '"+hdr+"' msg. confirmed="+block.getBloccoConf());
         }
         sendTcpQueue.add(dataToSend);
@@ -374,8 +484,7 @@ public abstract class Peer {
         final Data data = new Data(myName, runnableRecvTcp.getHost(), runnableRecvTcp.getPort(), EVERY_ONE, runnableRecvMulti.getHost(),
                                     runnableRecvMulti.getPort(), sig, msg);
         if (DEBUG) {
-            final String string = new String(msg);
-            final String hdr = string.substring(0, HEADER_LENGTH);
+            final String hdr = getMsgType(msg);
             System.out.println(myName+" Sending multicast '"+hdr+"' msg. confirmed="+block.getBloccoConf());
         }
         sendMultiQueue.add(data);
@@ -388,8 +497,7 @@ public abstract class Peer {
         final Data dataToSend = new Data(myName, runnableRecvTcp.getHost(), runnableRecvTcp.getPort(), data.getMittente(),
                 data.getIndirizzoSorgente().getHostAddress(), data.getPortaSorgente(), sig, msg);
         if (DEBUG) {
-            final String string = new String(msg);
-            final String hdr = string.substring(0, HEADER_LENGTH);
+            final String hdr = getMsgType(msg);
             System.out.println(myName+" Sending unicast '"+hdr+"' msg. confirmed="+block.getBloccoConf());
         }
         sendTcpQueue.add(dataToSend);
@@ -417,6 +525,15 @@ public abstract class Peer {
                 addBlockToRecv(Queued.State.CONFIRM, dataFrom, block, data);
                 sendWhois(dataFrom);
                 return;
+            } else if (status == Constants.Status.NO_SIGNER_KEY) {
+                // The sender is known, a transaction in the block is signed by someone who isn't. Wait for that
+                // one's 'I am' instead, asking the sender again would never end.
+                final String signer = getUnknownSigner(block);
+                if (signer == null)
+                    return;
+                addBlockToRecv(Queued.State.CONFIRM, signer, block, data);
+                sendWhois(signer);
+                return;
             } else if (status == Constants.Status.BAD_HASH) {
                 sendRehash(block, data);
                 return;
@@ -468,16 +585,18 @@ public abstract class Peer {
     /** What do you want to do now that you received a valid block, return the HashStatus **/
     protected abstract Constants.Status handleConfirmation(String dataFrom, Block block, byte[] signature, byte[] bytes);
 
+    /** Name of a signer of the block's transactions whose public key is unknown, or null if every key is known **/
+    protected abstract String getUnknownSigner(Block block);
+
     /** Mine the nonce sent in the transaction **/
-    protected abstract int mineHash(MiningTask timer, byte[] sha256, long numberOfZerosInPrefix);
+    protected abstract long mineHash(MiningTask timer, byte[] sha256, long numberOfZerosInPrefix);
 
     private void sendResend(int blockNumber) {
         final byte[] msg = getResendBlockMsg(blockNumber);
         final byte[] sig = signMsg(msg);
         final Data data = new Data(myName, runnableRecvTcp.getHost(), runnableRecvTcp.getPort(), EVERY_ONE, runnableRecvMulti.getHost(), runnableRecvMulti.getPort(), sig, msg);
         if (DEBUG) {
-            final String string = new String(msg);
-            final String hdr = string.substring(0, HEADER_LENGTH);
+            final String hdr = getMsgType(msg);
             System.out.println(myName+" Sending '"+hdr+"' msg");
         }
         sendMultiQueue.add(data);
@@ -504,8 +623,7 @@ public abstract class Peer {
         final Data dataToSend = new Data(myName, runnableRecvTcp.getHost(), runnableRecvTcp.getPort(), data.getMittente(),
                 data.getIndirizzoSorgente().getHostAddress(), data.getPortaSorgente(), sig, msg);
         if (DEBUG) {
-            final String string = new String(msg);
-            final String hdr = string.substring(0, HEADER_LENGTH);
+            final String hdr = getMsgType(msg);
             System.out.println(myName+" Sending '"+hdr+"' msg");
         }
         sendTcpQueue.add(dataToSend);
@@ -518,14 +636,19 @@ public abstract class Peer {
             handleTransactionAck(dataFrom, t, data);
     }
 
+    /** The queue of 'name' in 'queues', created if missing. Handlers run in parallel, two may create it at once **/
+    private static Queue<Queued> getQueue(ConcurrentMap<String,Queue<Queued>> queues, String name) {
+        final Queue<Queued> queue = queues.get(name);
+        if (queue != null)
+            return queue;
+        final Queue<Queued> created = new ConcurrentLinkedQueue<Queued>();
+        final Queue<Queued> previous = queues.putIfAbsent(name, created);
+        return (previous != null) ? previous : created;
+    }
+
     private void addTransactionToSend(Queued.State state, String to, Transaction transaction) {
         final Queued q = new Queued(state, transaction, null);
-        Queue<Queued> l = transactionsToSend.get(to);
-        if (l == null) {
-            l = new ConcurrentLinkedQueue<Queued>();
-            transactionsToSend.put(to, l);
-        }
-        l.add(q);
+        getQueue(transactionsToSend, to).add(q);
     }
 
     private void processTransactionsToSend(String to) {
@@ -541,8 +664,7 @@ public abstract class Peer {
             final byte[] sig = signMsg(msg);
             final Data data = new Data(myName, runnableRecvTcp.getHost(), runnableRecvTcp.getPort(), to, d.ip, d.port, sig, msg);
             if (DEBUG) {
-                final String string = new String(msg);
-                final String hdr = string.substring(0, HEADER_LENGTH);
+                final String hdr = getMsgType(msg);
                 System.out.println(myName+" Sending '"+hdr+"' msg");
             }
             sendTcpQueue.add(data);
@@ -551,22 +673,12 @@ public abstract class Peer {
 
     private void addTransactionToRecv(Queued.State state, String dataFrom, Transaction transaction, Data data) {
         final Queued q = new Queued(state, transaction, data);
-        Queue<Queued> lc = transactionsToRecv.get(dataFrom);
-        if (lc == null) {
-            lc = new ConcurrentLinkedQueue<Queued>();
-            transactionsToRecv.put(dataFrom, lc);
-        }
-        lc.add(q);
+        getQueue(transactionsToRecv, dataFrom).add(q);
     }
 
     private void addBlockToRecv(Queued.State state, String dataFrom, Block block, Data data) {
         final Queued q = new Queued(state, block, data);
-        Queue<Queued> lc = transactionsToRecv.get(dataFrom);
-        if (lc == null) {
-            lc = new ConcurrentLinkedQueue<Queued>();
-            transactionsToRecv.put(dataFrom, lc);
-        }
-        lc.add(q);
+        getQueue(transactionsToRecv, dataFrom).add(q);
     }
 
     private void processTransactionsToRecv(String from) {
@@ -577,8 +689,9 @@ public abstract class Peer {
             final Queued q = l.poll();
             if (q == null)
                 return;
+            // a block may wait on an inner signer's key, it is handled as coming from whoever sent it
             if (q.state == Queued.State.CONFIRM)
-                handleConfirmation(from, q.block, q.data);
+                handleConfirmation(q.data.getMittente(), q.block, q.data);
             else if (q.state == Queued.State.ACK)
                 handleTransactionAck(from, q.transaction, q.data);
             else
@@ -588,12 +701,7 @@ public abstract class Peer {
 
     private void addFutureBlockToRecv(Queued.State state, String dataFrom, Block block, Data data) {
         final Queued q = new Queued(state, block, data);
-        Queue<Queued> lc = futureTransactionsToRecv.get(dataFrom);
-        if (lc == null) {
-            lc = new ConcurrentLinkedQueue<Queued>();
-            futureTransactionsToRecv.put(dataFrom, lc);
-        }
-        lc.add(q);
+        getQueue(futureTransactionsToRecv, dataFrom).add(q);
     }
 
     private void processFutureBlocksToRecv(String from) {
@@ -677,8 +785,9 @@ public abstract class Peer {
         public void run() {
             peer.timerMap.remove(hex);
 
-            // Let's mine this sucker.
-            final int nonce = peer.mineHash(this, block.getHash(), block.getNumeroDiZeri());
+            // Let's mine this sucker. The timestamp is part of the work, so it's set first and never changes after.
+            block.setTimestamp(System.currentTimeMillis());
+            final long nonce = peer.mineHash(this, block.getPowHash(), block.getNumeroDiZeri());
 
             if (nonce < 0)
                 return;
@@ -705,13 +814,34 @@ public abstract class Peer {
         }
     }
 
+    /** Write the envelope of a message of type 'opcode', the body follows **/
+    public static final void putHeader(ByteBuffer buffer, byte opcode) {
+        buffer.put(ENVELOPE_VERSION);
+        buffer.put(opcode);
+    }
+
+    /** Name of the type of 'msg', for logging **/
+    private static final String getMsgType(byte[] msg) {
+        switch (msg[1]) {
+            case WHOIS:             return "Who is";
+            case IAM:               return "I am";
+            case TRANSACTION:       return "Transaction";
+            case TRANSACTION_ACK:   return "Transaction ACK";
+            case BLOCK:             return "Block";
+            case CONFIRMATION:      return "Block Confirm";
+            case RESEND:            return "Resend";
+            case REHASH:            return "Rehash";
+            default:                return "opcode "+msg[1];
+        }
+    }
+
     public static final byte[] getWhoisMsg(String name) {
         final byte[] bName = name.getBytes();
         final int nameLength = bName.length;
         final byte[] msg = new byte[HEADER_LENGTH + NAME_LENGTH + nameLength];
         final ByteBuffer buffer = ByteBuffer.wrap(msg);
 
-        buffer.put(WHOIS.getBytes());
+        putHeader(buffer, WHOIS);
         buffer.putInt(nameLength);
         buffer.put(bName);
 
@@ -721,8 +851,7 @@ public abstract class Peer {
     public static final String parseWhoisMsg(byte[] bytes) {
         final ByteBuffer buffer = ByteBuffer.wrap(bytes);
 
-        final byte [] bMsgType = new byte[HEADER_LENGTH];
-        buffer.get(bMsgType);
+        buffer.position(HEADER_LENGTH);
 
         final int nLength = buffer.getInt();
         final byte [] bName = new byte[nLength];
@@ -731,12 +860,14 @@ public abstract class Peer {
         return new String(bName);
     }
 
-    public static final byte[] getIamMsg(byte[] publicKey) {
+    public static final byte[] getIamMsg(byte scheme, byte[] publicKey) {
         final int publicKeyLength = publicKey.length;
-        final byte[] msg = new byte[HEADER_LENGTH + KEY_LENGTH + publicKeyLength];
+        final byte[] msg = new byte[HEADER_LENGTH + SCHEME_LENGTH + KEY_LENGTH + publicKeyLength];
         final ByteBuffer buffer = ByteBuffer.wrap(msg);
 
-        buffer.put(IAM.getBytes());
+        putHeader(buffer, IAM);
+
+        buffer.put(scheme);
 
         buffer.putInt(publicKeyLength);
         buffer.put(publicKey);
@@ -744,11 +875,14 @@ public abstract class Peer {
         return msg;
     }
 
+    public static final byte parseIamScheme(byte[] bytes) {
+        return bytes[HEADER_LENGTH];
+    }
+
     public static final byte[] parseIamMsg(byte[] bytes) {
         final ByteBuffer buffer = ByteBuffer.wrap(bytes);
 
-        final byte [] bMsgType = new byte[HEADER_LENGTH];
-        buffer.get(bMsgType);
+        buffer.position(HEADER_LENGTH + SCHEME_LENGTH);
 
         final int kLength = buffer.getInt();
         final byte [] bKey = new byte[kLength];
@@ -759,22 +893,17 @@ public abstract class Peer {
 
     public static final byte[] getTransactionMsg(Transaction transaction) {
         final byte[] msg = new byte[HEADER_LENGTH + transaction.getBufferLength()];
-        final ByteBuffer transactionBuffer = ByteBuffer.allocate(transaction.getBufferLength());
-        transaction.toBuffer(transactionBuffer);
-        transactionBuffer.flip();
-
         final ByteBuffer buffer = ByteBuffer.wrap(msg);
-        buffer.put(TRANSACTION.getBytes());
+        putHeader(buffer, TRANSACTION);
 
-        buffer.put(transactionBuffer);
+        transaction.toBuffer(buffer);
 
         return msg;
     }
 
     public static final Transaction parseTransactionMsg(byte[] bytes) {
         final ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        final byte [] bMsgType = new byte[HEADER_LENGTH];
-        buffer.get(bMsgType);
+        buffer.position(HEADER_LENGTH);
 
         final Transaction transaction = new Transaction();
         transaction.fromBuffer(buffer);
@@ -784,22 +913,17 @@ public abstract class Peer {
 
     public static final byte[] getTransactionAckMsg(Transaction transaction) {
         final byte[] msg = new byte[HEADER_LENGTH + transaction.getBufferLength()];
-        final ByteBuffer transactionBuffer = ByteBuffer.allocate(transaction.getBufferLength());
-        transaction.toBuffer(transactionBuffer);
-        transactionBuffer.flip();
-
         final ByteBuffer buffer = ByteBuffer.wrap(msg);
-        buffer.put(TRANSACTION_ACK.getBytes());
+        putHeader(buffer, TRANSACTION_ACK);
 
-        buffer.put(transactionBuffer);
+        transaction.toBuffer(buffer);
 
         return msg;
     }
 
     public static final Transaction parseTransactionAckMsg(byte[] bytes) {
         final ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        final byte [] bMsgType = new byte[HEADER_LENGTH];
-        buffer.get(bMsgType);
+        buffer.position(HEADER_LENGTH);
 
         final Transaction block = new Transaction();
         block.fromBuffer(buffer);
@@ -809,22 +933,17 @@ public abstract class Peer {
 
     public static final byte[] getBlockMsg(Block block) {
         final byte[] msg = new byte[HEADER_LENGTH + block.getBufferLength()];
-        final ByteBuffer blockBuffer = ByteBuffer.allocate(block.getBufferLength());
-        block.toBuffer(blockBuffer);
-        blockBuffer.flip();
-
         final ByteBuffer buffer = ByteBuffer.wrap(msg);
-        buffer.put(BLOCK.getBytes());
+        putHeader(buffer, BLOCK);
 
-        buffer.put(blockBuffer);
+        block.toBuffer(buffer);
 
         return msg;
     }
 
     public static final Block parseBlockMsg(byte[] bytes) {
         final ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        final byte [] bMsgType = new byte[HEADER_LENGTH];
-        buffer.get(bMsgType);
+        buffer.position(HEADER_LENGTH);
 
         final Block block = new Block();
         block.fromBuffer(buffer);
@@ -834,22 +953,17 @@ public abstract class Peer {
 
     public static final byte[] getConfirmationMsg(Block block) {
         final byte[] msg = new byte[HEADER_LENGTH + block.getBufferLength()];
-        final ByteBuffer blockBuffer = ByteBuffer.allocate(block.getBufferLength());
-        block.toBuffer(blockBuffer);
-        blockBuffer.flip();
-
         final ByteBuffer buffer = ByteBuffer.wrap(msg);
-        buffer.put(CONFIRMATION.getBytes());
+        putHeader(buffer, CONFIRMATION);
 
-        buffer.put(blockBuffer);
+        block.toBuffer(buffer);
 
         return msg;
     }
 
     public static final Block parseConfirmationMsg(byte[] bytes) {
         final ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        final byte [] bMsgType = new byte[HEADER_LENGTH];
-        buffer.get(bMsgType);
+        buffer.position(HEADER_LENGTH);
 
         final Block block = new Block();
         block.fromBuffer(buffer);
@@ -861,7 +975,7 @@ public abstract class Peer {
         final byte[] msg = new byte[HEADER_LENGTH + 4];
 
         final ByteBuffer buffer = ByteBuffer.wrap(msg);
-        buffer.put(RESEND.getBytes());
+        putHeader(buffer, RESEND);
 
         buffer.putInt(blockNumber);
 
@@ -870,8 +984,7 @@ public abstract class Peer {
 
     public static final int parseResendBlockMsg(byte[] bytes) {
         final ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        final byte [] bMsgType = new byte[HEADER_LENGTH];
-        buffer.get(bMsgType);
+        buffer.position(HEADER_LENGTH);
 
         final int blockNumber = buffer.getInt();
 
@@ -880,22 +993,17 @@ public abstract class Peer {
 
     public static final byte[] getRehashMsg(Block block) {
         final byte[] msg = new byte[HEADER_LENGTH + block.getBufferLength()];
-        final ByteBuffer blockBuffer = ByteBuffer.allocate(block.getBufferLength());
-        block.toBuffer(blockBuffer);
-        blockBuffer.flip();
-
         final ByteBuffer buffer = ByteBuffer.wrap(msg);
-        buffer.put(REHASH.getBytes());
+        putHeader(buffer, REHASH);
 
-        buffer.put(blockBuffer);
+        block.toBuffer(buffer);
 
         return msg;
     }
 
     public static final Block parseRehashMsg(byte[] bytes) {
         final ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        final byte [] bMsgType = new byte[HEADER_LENGTH];
-        buffer.get(bMsgType);
+        buffer.position(HEADER_LENGTH);
 
         final Block block = new Block();
         block.fromBuffer(buffer);
@@ -4,90 +4,160 @@ import it.unica.enrico.interfaces.MessageListener;
 import it.unica.enrico.interfaces.Receiver;
 import it.unica.enrico.interfaces.Sender;
 import it.unica.enrico.models.Data;
-import java.io.DataOutputStream;
+import it.unica.enrico.utils.BufferPool;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TCP {
 
     private static final boolean DEBUG = Boolean.getBoolean("debug_all");
     static final String LOCAL = "127.0.0.1";
-    public static int port = 2221;
-
-    public static ServerSocket createServer(int port) throws IOException {
-        final ServerSocket serverSocket = new ServerSocket(port);
-        return serverSocket;
+    // ports handed to the receivers, 'ephemeral_ports' lets the OS pick free ones instead
+    private static final AtomicInteger NEXT_PORT = new AtomicInteger(Integer.getInteger("tcp_port", 2221));
+    static final boolean EPHEMERAL = Boolean.getBoolean("ephemeral_ports");
+    // frames announcing more than this are treated as a broken connection. A block carries one aggregate
+    // transaction with its inputs and outputs, thousands of them fit in the default
+    static final int FRAME_HEADER_LENGTH = 4;
+    static final int MAX_FRAME_SIZE = Integer.getInteger("max_frame_size", 1024*1024);
+    // a frame's buffer starts this big and grows as its bytes arrive, a length alone allocates no more than this
+    private static final int INITIAL_FRAME_SIZE = 16*1024;
+    // incoming connections with nothing to read for this long are closed, longer than the senders keep them idle
+    static final long INBOUND_IDLE_TIMEOUT = Long.getLong("tcp_inbound_idle_timeout", 2*ConnectionPool.IDLE_TIMEOUT);
+
+    public static ServerSocketChannel createServer(int port) throws IOException {
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        return serverChannel;
     }
 
-    public static void destoryServer(ServerSocket s) throws IOException {
+    public static void destoryServer(ServerSocketChannel s) throws IOException {
         if (s != null)
             s.close();
     }
 
-    public static Socket createClient(String host, int port) throws IOException {
-        final Socket outgoingSocket = new Socket(host, port);
-        return outgoingSocket;
+    public static SocketChannel createClient(String host, int port) throws IOException {
+        // blocking, the sender waits for every frame to be written
+        final SocketChannel outgoingChannel = SocketChannel.open(new InetSocketAddress(host, port));
+        return outgoingChannel;
     }
 
-    public static void destoryClient(Socket s) throws IOException {
+    public static void destoryClient(SocketChannel s) throws IOException {
         if (s != null)
             s.close();
     }
 
-    public static void sendData(Socket socket, byte[] buffer) throws IOException {
-        final OutputStream out = socket.getOutputStream();
-        final DataOutputStream dos = new DataOutputStream(out);
-        dos.write(buffer);
-        dos.flush();
-        dos.close();
-        out.flush();
-        out.close();
+    /** Write one frame, the length of the message followed by the message bytes, as laid out in 'frame' **/
+    public static void sendData(SocketChannel channel, ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining())
+            channel.write(frame);
     }
 
     /**
-     * Blocking call
+     * Reassembles the frames of one connection from whatever the non blocking reads return: a frame may arrive in
+     * many pieces and a read may hold several frames. The length comes from an unauthenticated connection, so the
+     * body starts from a small pooled buffer and only grows, outside the pool, as its bytes actually arrive.
      */
-    public static boolean recvData(ServerSocket serverSocket, byte[] buffer) throws IOException {
-        serverSocket.setSoTimeout(10);
-        Socket incomingSocket = null;
-        try {
-            incomingSocket = serverSocket.accept();
-        } catch (SocketTimeoutException e) {
-            return false;
+    static final class FrameReader {
+
+        private final ByteBuffer    header  = ByteBuffer.allocate(FRAME_HEADER_LENGTH);
+        private ByteBuffer          body    = null;
+        private int                 length;
+        private boolean             pooled;
+        private long                lastRead = System.currentTimeMillis();
+
+        /**
+         * Read what is available from 'channel' and hand every complete frame to 'recv'. Returns false once the
+         * other side closed the connection.
+         */
+        boolean read(SocketChannel channel, Peer.RunnableRecv recv) throws IOException {
+            lastRead = System.currentTimeMillis();
+            while (true) {
+                if (body == null) {
+                    if (channel.read(header) < 0)
+                        return false;
+                    if (header.hasRemaining())
+                        return true;
+                    length = header.getInt(0);
+                    if (length < 0 || length > MAX_FRAME_SIZE)
+                        throw new IOException("Bad frame length. length="+length);
+                    body = BufferPool.getShared().acquire(Math.min(length, INITIAL_FRAME_SIZE));
+                    pooled = true;
+                }
+                while (body.position() < length) {
+                    if (!body.hasRemaining())
+                        grow();
+                    final int read = channel.read(body);
+                    if (read < 0)
+                        return false;
+                    if (read == 0)
+                        return true;
+                }
+
+                body.flip();
+                try {
+                    recv.onFrame(body);
+                } finally {
+                    if (pooled)
+                        BufferPool.getShared().release(body);
+                    body = null;
+                }
+                header.clear();
+            }
+        }
+
+        /** Twice the room, up to the frame's length. Big buffers are not pooled, few frames need them **/
+        private void grow() {
+            final ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(length, 2L * body.capacity()));
+            body.flip();
+            bigger.put(body);
+            if (pooled)
+                BufferPool.getShared().release(body);
+            body = bigger;
+            pooled = false;
         }
-        final InputStream input = incomingSocket.getInputStream();
-        input.read(buffer);
-        input.close();
-        return true;
     }
 
     public static final class Peer {
 
-        private static final int        BUFFER_SIZE     = 10*1024;
+        private static final int        SELECT_TIMEOUT  = 100;
+        private static final long       EVICT_INTERVAL  = 1000;
 
         private Peer() { }
 
         public static final class RunnableRecv implements Runnable, Receiver {
 
-            public static volatile boolean                      run         = true;
+            private volatile boolean                            run         = true;
 
             private final ConcurrentLinkedQueue<Data>           toRecv      = new ConcurrentLinkedQueue<Data>();
-            private final int                                   port;
             private final MessageListener                       listener;
+            private volatile int                                port;
+            private volatile Selector                           selector    = null;
 
             private volatile boolean                            isReady     = false;
+            private final CountDownLatch                        ready       = new CountDownLatch(1);
 
             public RunnableRecv(MessageListener listener) {
-                run = true;
-                this.port = TCP.port++;
+                this(listener, EPHEMERAL ? 0 : NEXT_PORT.getAndIncrement());
+            }
+
+            /** Listen on 'port', 0 for any free port (getPort() tells which once ready) **/
+            public RunnableRecv(MessageListener listener, int port) {
+                this.port = port;
                 this.listener = listener;
             }
 
@@ -107,6 +177,26 @@ public class TCP {
                 return isReady;
             }
 
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean awaitReady() throws InterruptedException {
+                ready.await();
+                return isReady;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void shutdown() {
+                run = false;
+                final Selector current = selector;
+                if (current != null)
+                    current.wakeup();
+            }
+
             /**
              * {@inheritDoc}
              */
@@ -128,61 +218,137 @@ public class TCP {
              */
             @Override
             public void run() {
-                ServerSocket s = null;
+                ServerSocketChannel s = null;
                 try {
                     if (DEBUG)
                         System.out.println("Creating server. port="+port);
                     s = TCP.createServer(port);
-                    final byte[] array = new byte[BUFFER_SIZE];
-                    final ByteBuffer bb = ByteBuffer.wrap(array);
+                    port = ((InetSocketAddress) s.getLocalAddress()).getPort();
+                    selector = Selector.open();
+                    s.register(selector, SelectionKey.OP_ACCEPT);
                     isReady = true;
+                    ready.countDown();
+                    long lastEvict = System.currentTimeMillis();
                     while (run) {
-                        bb.clear();
-                        final boolean p = TCP.recvData(s,array);
-                        if (!p) {
-                            Thread.yield();
+                        final long now = System.currentTimeMillis();
+                        if (now - lastEvict >= EVICT_INTERVAL) {
+                            closeIdle(now);
+                            lastEvict = now;
+                        }
+                        // wake up now and then to check 'run'
+                        if (selector.select(SELECT_TIMEOUT) == 0)
                             continue;
+                        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            final SelectionKey key = keys.next();
+                            keys.remove();
+                            if (!key.isValid())
+                                continue;
+                            if (key.isAcceptable())
+                                accept(s, selector);
+                            else if (key.isReadable())
+                                read(key);
                         }
-
-                        final Data data = new Data();
-                        data.fromBuffer(bb);
-
-                        if (DEBUG)
-                            System.out.println("Server ("+getHost()+":"+getPort()+") received '"+
-                                    new String(data.getMessaggio().array())+"' from "+
-                                    data.getIndirizzoSorgente().getHostAddress()+
-                                    ":"+data.getPortaSorgente());
-
-                        toRecv.add(data);
-                        listener.onMessage(this);
-
-                        Thread.yield();
                     }
-                } catch (SocketException e) {
-                    e.printStackTrace();
                 } catch (IOException e) {
                     e.printStackTrace();
                 } finally {
+                    ready.countDown();
                     try {
+                        if (selector != null) {
+                            for (SelectionKey key : selector.keys())
+                                key.channel().close();
+                            selector.close();
+                        }
                         TCP.destoryServer(s);
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
                 }
             }
+
+            private void accept(ServerSocketChannel s, Selector selector) throws IOException {
+                SocketChannel incoming = s.accept();
+                while (incoming != null) {
+                    incoming.configureBlocking(false);
+                    // every sender keeps its connection open, its frames are read as they come
+                    incoming.register(selector, SelectionKey.OP_READ, new FrameReader());
+                    incoming = s.accept();
+                }
+            }
+
+            /** Close the incoming connections of senders which went away without closing them **/
+            private void closeIdle(long now) {
+                for (SelectionKey key : selector.keys()) {
+                    if (!(key.attachment() instanceof FrameReader))
+                        continue;
+                    if (now - ((FrameReader) key.attachment()).lastRead < INBOUND_IDLE_TIMEOUT)
+                        continue;
+                    if (DEBUG)
+                        System.out.println("Server ("+getHost()+":"+getPort()+") closing an idle connection.");
+                    key.cancel();
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            private void read(SelectionKey key) {
+                final SocketChannel incoming = (SocketChannel) key.channel();
+                boolean open;
+                try {
+                    open = ((FrameReader) key.attachment()).read(incoming, this);
+                } catch (IOException e) {
+                    System.err.println("Server ("+getHost()+":"+getPort()+") lost a connection. "+e);
+                    open = false;
+                }
+                if (open)
+                    return;
+                key.cancel();
+                try {
+                    incoming.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            private void onFrame(ByteBuffer frame) {
+                final Data data = new Data();
+                try {
+                    data.fromBuffer(frame);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Server ("+getHost()+":"+getPort()+") dropped a message. "+e.getMessage());
+                    return;
+                } catch (BufferUnderflowException e) {
+                    System.err.println("Server ("+getHost()+":"+getPort()+") dropped a truncated message.");
+                    return;
+                }
+
+                if (DEBUG)
+                    System.out.println("Server ("+getHost()+":"+getPort()+") received '"+
+                            new String(data.getMessaggio().array())+"' from "+
+                            data.getIndirizzoSorgente().getHostAddress()+
+                            ":"+data.getPortaSorgente());
+
+                toRecv.add(data);
+                listener.onMessage(this);
+            }
         };
 
         public static final class RunnableSend implements Runnable, Sender {
 
-            public static volatile boolean                      run         = true;
+            private volatile boolean                            run         = true;
 
-            private final ConcurrentLinkedQueue<Data>           toSend      = new ConcurrentLinkedQueue<Data>();
+            private final BlockingQueue<Data>                   toSend      = new LinkedBlockingQueue<Data>();
+            private final ConnectionPool                        pool        = new ConnectionPool();
+            private volatile Thread                             thread      = null;
 
             private volatile boolean                            isReady     = false;
+            private final CountDownLatch                        ready       = new CountDownLatch(1);
 
-            public RunnableSend() {
-                run = true;
-            }
+            public RunnableSend() { }
 
             /**
              * {@inheritDoc}
@@ -200,46 +366,84 @@ public class TCP {
                 return isReady;
             }
 
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean awaitReady() throws InterruptedException {
+                ready.await();
+                return isReady;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void shutdown() {
+                run = false;
+                // wake it up from waiting on the queue
+                final Thread current = thread;
+                if (current != null)
+                    current.interrupt();
+            }
+
             /**
              * {@inheritDoc}
              */
             @Override
             public void run() {
-                Socket s = null;
+                final BufferPool buffers = BufferPool.getSharedDirect();
+                thread = Thread.currentThread();
                 try {
-                    final byte[] buffer = new byte[BUFFER_SIZE];
-                    final ByteBuffer bb = ByteBuffer.wrap(buffer);
+                    long lastEviction = System.currentTimeMillis();
                     isReady = true;
+                    ready.countDown();
                     while (run) {
                         if (DEBUG && toSend.size()>1)
                             System.out.println("Client toSend size="+toSend.size());
-                        final Data d = toSend.poll();
-                        if (d != null) {
-                            bb.clear();
-                            d.toBuffer(bb);
-                            bb.flip();
-
-                            if (DEBUG)
-                                System.out.println("Client ("+d.getIndirizzoSorgente().getHostAddress()+":"+d.getPortaSorgente()+
-                                        ") sending '"+new String(d.getMessaggio().array())
-                                        +"'");
-
-                            s = TCP.createClient(d.getIndirizzoDestinzazione().getHostAddress(), d.getPortaDestinzazione());
-                            TCP.sendData(s, buffer);
+                        // sleeps until there is something to send, or it is time to look for idle connections
+                        final Data d = toSend.poll(EVICT_INTERVAL, TimeUnit.MILLISECONDS);
+                        if (d != null)
+                            send(d, buffers);
+
+                        final long now = System.currentTimeMillis();
+                        if (now - lastEviction >= EVICT_INTERVAL) {
+                            pool.evictIdle();
+                            lastEviction = now;
                         }
-
-                        Thread.yield();
                     }
-                } catch (SocketException e) {
-                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    // shutdown
+                } finally {
+                    ready.countDown();
+                    pool.closeAll();
+                }
+            }
+
+            private void send(Data d, BufferPool buffers) {
+                final int length = d.getBufferLength();
+                if (length > MAX_FRAME_SIZE) {
+                    System.err.println("Client dropped a message bigger than the frame limit. length="+length);
+                    return;
+                }
+                // [length][message], encoded once straight into the buffer the channel writes from
+                final ByteBuffer bb = buffers.acquire(FRAME_HEADER_LENGTH + length);
+                bb.putInt(length);
+                d.toBuffer(bb);
+                bb.flip();
+
+                if (DEBUG)
+                    System.out.println("Client ("+d.getIndirizzoSorgente().getHostAddress()+":"+d.getPortaSorgente()+
+                            ") sending '"+new String(d.getMessaggio().array())
+                            +"'");
+
+                try {
+                    pool.send(d.getIndirizzoDestinzazione().getHostAddress(), d.getPortaDestinzazione(), bb);
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    // the peer is gone, drop the message and keep serving the others
+                    System.err.println("Client could not send to "+d.getIndirizzoDestinzazione().getHostAddress()+":"+d.getPortaDestinzazione()+". "+e);
                 } finally {
-                    try {
-                        TCP.destoryClient(s);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                    buffers.release(bb);
                 }
             }
         };
@@ -5,10 +5,18 @@ import it.unica.enrico.interfaces.Receiver;
 import it.unica.enrico.interfaces.Sender;
 import it.unica.enrico.models.Data;
 import java.io.IOException;
-import java.net.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UDP {
 
@@ -16,66 +24,61 @@ public class UDP {
 
     public static final String      LOCAL       = "127.0.0.1";
 
-    public static int               port        = 1111;
+    // ports handed to the receivers, 'ephemeral_ports' lets the OS pick free ones instead
+    private static final AtomicInteger NEXT_PORT = new AtomicInteger(Integer.getInteger("udp_port", 1111));
 
-    public static DatagramSocket createServer(int port) throws SocketException {
-        final DatagramSocket serverSocket = new DatagramSocket(port);
-        return serverSocket;
+    public static DatagramChannel createServer(Selector selector, int port) throws IOException {
+        final DatagramChannel serverChannel = DatagramChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, Datagrams.RECEIVE_BUFFER);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_READ);
+        return serverChannel;
     }
 
-    public static void destoryServer(DatagramSocket s) {
+    public static void destoryServer(DatagramChannel s) throws IOException {
         if (s != null)
             s.close();
     }
 
-    public static DatagramSocket createClient() throws SocketException {
-        final DatagramSocket clientSocket = new DatagramSocket();
-        return clientSocket;
+    public static DatagramChannel createClient(Selector selector) throws IOException {
+        final DatagramChannel clientChannel = DatagramChannel.open();
+        clientChannel.configureBlocking(false);
+        clientChannel.register(selector, 0);
+        return clientChannel;
     }
 
-    public static void destoryClient(DatagramSocket s) {
+    public static void destoryClient(DatagramChannel s) throws IOException {
         if (s != null)
             s.close();
     }
 
-    public static void sendData(DatagramSocket socket, InetAddress IPAddress, int port, byte[] buffer) throws IOException {
-        final DatagramPacket sendPacket = new DatagramPacket(buffer, buffer.length, IPAddress, port);
-        socket.send(sendPacket);
-    }
-
-    /**
-     * Blocking call
-     */
-    public static boolean recvData(DatagramSocket socket, byte[] buffer) throws IOException {
-        socket.setSoTimeout(100);
-        final DatagramPacket receivePacket = new DatagramPacket(buffer, buffer.length);
-        try {
-            socket.receive(receivePacket);
-        } catch (SocketTimeoutException e) {
-            return false;
-        }
-        return true;
-    }
-
     public static final class Peer {
 
-        private static final int        BUFFER_SIZE     = 10*1024;
+        // one fragment, see Fragments
+        private static final int        BUFFER_SIZE     = Fragments.MAX_DATAGRAM;
 
         private Peer() { }
 
         public static final class RunnableRecv implements Runnable, Receiver {
 
-            public static volatile boolean                      run         = true;
+            private volatile boolean                            run         = true;
 
             private final ConcurrentLinkedQueue<Data>           toRecv      = new ConcurrentLinkedQueue<Data>();
-            private final int                                   port;
             private final MessageListener                       listener;
+            private volatile int                                port;
+            private volatile Selector                           selector    = null;
 
             private volatile boolean                            isReady     = false;
+            private final CountDownLatch                        ready       = new CountDownLatch(1);
 
             public RunnableRecv(MessageListener listener) {
-                run = true;
-                this.port = UDP.port++;
+                this(listener, TCP.EPHEMERAL ? 0 : NEXT_PORT.getAndIncrement());
+            }
+
+            /** Listen on 'port', 0 for any free port (getPort() tells which once ready) **/
+            public RunnableRecv(MessageListener listener, int port) {
+                this.port = port;
                 this.listener = listener;
             }
 
@@ -95,6 +98,26 @@ public class UDP {
                 return isReady;
             }
 
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean awaitReady() throws InterruptedException {
+                ready.await();
+                return isReady;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void shutdown() {
+                run = false;
+                final Selector current = selector;
+                if (current != null)
+                    current.wakeup();
+            }
+
             /**
              * {@inheritDoc}
              */
@@ -116,56 +139,55 @@ public class UDP {
              */
             @Override
             public void run() {
-                DatagramSocket s = null;
+                DatagramChannel s = null;
                 try {
                     if (DEBUG)
                         System.out.println("Creating server. port="+port);
-                    s = UDP.createServer(port);
-                    final byte[] array = new byte[BUFFER_SIZE];
-                    final ByteBuffer bb = ByteBuffer.wrap(array);
+                    selector = Selector.open();
+                    s = UDP.createServer(selector, port);
+                    port = ((InetSocketAddress) s.getLocalAddress()).getPort();
+                    final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    final Fragments.Reassembler reassembler = new Fragments.Reassembler();
                     isReady = true;
+                    ready.countDown();
                     while (run) {
-                        bb.clear();
-                        final boolean p = UDP.recvData(s,bb.array());
-                        if (!p) {
-                            Thread.yield();
+                        if (selector.select(Datagrams.SELECT_TIMEOUT) == 0)
                             continue;
-                        }
-
-                        final Data data = new Data();
-                        data.fromBuffer(bb);
+                        selector.selectedKeys().clear();
 
+                        // every pending datagram, then one listener call for all the messages they completed
+                        final int received = Datagrams.receiveAll(s, buffer, reassembler, toRecv);
                         if (DEBUG)
-                            System.out.println("Server ("+getHost()+":"+getPort()+") received '"+
-                                    new String(data.getMessaggio().array())+"' from "+data.getIndirizzoSorgente()
-                                    .getHostAddress()+":"+data.getPortaSorgente());
-
-                        toRecv.add(data);
-                        listener.onMessage(this);
-
-                        Thread.yield();
+                            System.out.println("Server ("+getHost()+":"+getPort()+") received "+received+" messages");
+                        if (received > 0)
+                            listener.onMessage(this);
                     }
-                } catch (SocketException e) {
-                    e.printStackTrace();
                 } catch (IOException e) {
                     e.printStackTrace();
                 } finally {
-                    UDP.destoryServer(s);
+                    ready.countDown();
+                    try {
+                        UDP.destoryServer(s);
+                        if (selector != null)
+                            selector.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
         };
 
         public static final class RunnableSend implements Runnable, Sender {
 
-            public static volatile boolean                      run         = true;
+            private volatile boolean                            run         = true;
 
-            private final ConcurrentLinkedQueue<Data>           toSend      = new ConcurrentLinkedQueue<Data>();
+            private final BlockingQueue<Data>                   toSend      = new LinkedBlockingQueue<Data>();
 
             private volatile boolean                            isReady     = false;
+            private final CountDownLatch                        ready       = new CountDownLatch(1);
+            private volatile Thread                             thread      = null;
 
-            public RunnableSend() {
-                run = true;
-            }
+            public RunnableSend() { }
 
             /**
              * {@inheritDoc}
@@ -183,45 +205,62 @@ public class UDP {
                 return isReady;
             }
 
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean awaitReady() throws InterruptedException {
+                ready.await();
+                return isReady;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void shutdown() {
+                run = false;
+                // wake it up from waiting on the queue
+                final Thread current = thread;
+                if (current != null)
+                    current.interrupt();
+            }
+
             /**
              * {@inheritDoc}
              */
             @Override
             public void run() {
-                DatagramSocket s = null;
+                DatagramChannel s = null;
+                Selector selector = null;
+                thread = Thread.currentThread();
                 try {
                     if (DEBUG)
                         System.out.println("Creating client");
-                    s = UDP.createClient();
-                    final byte[] buffer = new byte[BUFFER_SIZE];
-                    final ByteBuffer bb = ByteBuffer.wrap(buffer);
+                    selector = Selector.open();
+                    s = UDP.createClient(selector);
                     isReady = true;
+                    ready.countDown();
                     while (run) {
-                        if (DEBUG && toSend.size()>1)
-                            System.out.println("Client toSend size="+toSend.size());
-                        final Data d = toSend.poll();
-                        if (d != null) {
-                            bb.clear();
-                            d.toBuffer(bb);
-                            bb.flip();
-
-                            if (DEBUG)
-                                System.out.println("Client ("+d.getIndirizzoSorgente().getHostAddress()+":"+
-                                        d.getPortaSorgente()+") sending '"+new String(d
-                                        .getMessaggio().array())+"'");
-
-                            UDP.sendData(s, d.getIndirizzoDestinzazione(), d.getPortaDestinzazione(), buffer);
-                        }
-
-                        Thread.yield();
+                        // sleep until something is queued, then send it and everything queued since the last pass, each to its own destination
+                        final Data first = toSend.take();
+                        if (DEBUG && toSend.size()>0)
+                            System.out.println("Client toSend size="+(toSend.size()+1));
+                        Datagrams.sendAll(s, selector, first, toSend, null);
                     }
-                } catch (SocketException e) {
-                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    // shutdown
                 } catch (IOException e) {
                     e.printStackTrace();
                 } finally {
-                    if (s != null)
+                    ready.countDown();
+                    try {
                         UDP.destoryClient(s);
+                        if (selector != null)
+                            selector.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
         };
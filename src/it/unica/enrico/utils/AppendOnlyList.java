@@ -0,0 +1,88 @@
+package it.unica.enrico.utils;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * List which only grows at the end. Elements are kept in fixed size chunks so an append never copies the elements
+ * already stored, only the (small) chunk table when it is full.
+ * <p>
+ * Appends are serialized, reads take no lock: an element is written before the volatile size which publishes it, so
+ * a reader sees every element below the size it read. Iterators are snapshots of the list at the time they were
+ * created, like the ones of CopyOnWriteArrayList.
+ */
+public class AppendOnlyList<T> implements Iterable<T> {
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile Object[][] chunks = new Object[4][];
+    private volatile int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index="+index+" size="+size);
+        return (T) chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    /** The last element, or null when empty **/
+    public T last() {
+        final int current = size;
+        return (current == 0) ? null : get(current - 1);
+    }
+
+    public synchronized void add(T element) {
+        final int index = size;
+        final int chunk = index >>> CHUNK_SHIFT;
+        Object[][] table = chunks;
+        if (chunk == table.length) {
+            final Object[][] grown = new Object[table.length * 2][];
+            System.arraycopy(table, 0, grown, 0, table.length);
+            chunks = table = grown;
+        }
+        if (table[chunk] == null)
+            table[chunk] = new Object[CHUNK_SIZE];
+        table[chunk][index & CHUNK_MASK] = element;
+        // publish
+        size = index + 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<T> iterator() {
+        final int end = size;
+        return new Iterator<T>() {
+            private int next = 0;
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public T next() {
+                if (next >= end)
+                    throw new NoSuchElementException();
+                return get(next++);
+            }
+        };
+    }
+}
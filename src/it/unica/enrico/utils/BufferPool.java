@@ -0,0 +1,92 @@
+package it.unica.enrico.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of heap or direct byte buffers in power of two size classes, from 256 bytes up to 'buffer_pool_max' (1MB by default).
+ * Bigger requests get a fresh buffer which is not kept. Every class keeps at most 'buffer_pool_size' free buffers.
+ * Thread safe.
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SIZE = Integer.getInteger("buffer_pool_max", 1024*1024);
+    private static final int PER_CLASS = Integer.getInteger("buffer_pool_size", 16);
+
+    private static final BufferPool SHARED = new BufferPool(false);
+    private static final BufferPool SHARED_DIRECT = new BufferPool(true);
+
+    private final boolean direct;
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicInteger[] counts;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean direct) {
+        this.direct = direct;
+        final int classes = getClass(MAX_SIZE) + 1;
+        free = new Queue[classes];
+        counts = new AtomicInteger[classes];
+        for (int i=0; i<classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            counts[i] = new AtomicInteger();
+        }
+    }
+
+    /** The heap buffer pool shared by the transports **/
+    public static BufferPool getShared() {
+        return SHARED;
+    }
+
+    /** The direct buffer pool shared by the transports, for buffers handed straight to a channel **/
+    public static BufferPool getSharedDirect() {
+        return SHARED_DIRECT;
+    }
+
+    /** A buffer with room for at least 'size' bytes, position 0 and limit 'size' **/
+    public ByteBuffer acquire(int size) {
+        final int c = getClass(size);
+        ByteBuffer buffer = null;
+        if (c < free.length) {
+            buffer = free[c].poll();
+            if (buffer != null)
+                counts[c].decrementAndGet();
+            else
+                buffer = allocate(1 << (c + MIN_SHIFT));
+        } else {
+            buffer = allocate(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /** Give back a buffer from {@link #acquire(int)}, it must not be used afterwards **/
+    public void release(ByteBuffer buffer) {
+        if (buffer.isDirect() != direct)
+            return;
+        final int capacity = buffer.capacity();
+        // only the exact class sizes come from this pool
+        if (Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_SHIFT))
+            return;
+        final int c = getClass(capacity);
+        if (c >= free.length || counts[c].incrementAndGet() > PER_CLASS) {
+            if (c < free.length)
+                counts[c].decrementAndGet();
+            return;
+        }
+        free[c].add(buffer);
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private static int getClass(int size) {
+        if (size <= (1 << MIN_SHIFT))
+            return 0;
+        return (32 - Integer.numberOfLeadingZeros(size - 1)) - MIN_SHIFT;
+    }
+}
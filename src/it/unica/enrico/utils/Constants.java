@@ -5,9 +5,12 @@ public abstract class Constants {
         public enum  Status {
             OWN_TRANSACTION,
             NO_PUBLIC_KEY,
+            NO_SIGNER_KEY,
             INCORRECT_NONCE,
             FUTURE_BLOCK,
             BAD_HASH,
+            BAD_DIFFICULTY,
+            BAD_TIMESTAMP,
             BAD_SIGNATURE,
             BAD_INPUTS,
             DUPLICATE,
@@ -0,0 +1,177 @@
+package it.unica.enrico.utils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Proof of work target. The difficulty stored in a block (numeroDiZeri) is either
+ * <ul>
+ *     <li>a number of zeros (1..256): checked with the legacy bit rules used by the existing chains;</li>
+ *     <li>a compact target (greater than 256): size in bytes in the high byte and a 23 bit mantissa in the low
+ *     bytes, target = mantissa * 256^(size-3). A hash is valid when, read as a 256 bit big endian number, it
+ *     is not greater than the target. This allows fractional difficulties.</li>
+ * </ul>
+ * Only the block decides which rule applies, so every node checks it the same way: real leading zeros are asked for
+ * with the compact target of that many bits ({@link #toCompact(double)}).
+ * Instances are immutable and thread safe.
+ */
+public final class DifficultyTarget {
+
+    public static final int MAX_ZEROS = 256;
+    private static final BigInteger MAX_TARGET = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+
+    // Blocks on a chain share their difficulty for long stretches, keep the last target around
+    private static volatile DifficultyTarget last = null;
+
+    private final long      difficulty;
+    private final boolean   legacy;
+    private final long[]    target = new long[4];   // big endian words
+    private final int       targetZeros;            // leading zeros of the target
+
+    private DifficultyTarget(long difficulty, boolean legacy, BigInteger value) {
+        this.difficulty = difficulty;
+        this.legacy = legacy;
+        for (int i=0; i<4; i++)
+            target[i] = value.shiftRight(64 * (3 - i)).longValue();
+        this.targetZeros = 256 - value.bitLength();
+    }
+
+    /** Target for the difficulty stored in a block **/
+    public static DifficultyTarget of(long difficulty) {
+        DifficultyTarget result = last;
+        if (result != null && result.difficulty == difficulty)
+            return result;
+
+        if (difficulty > MAX_ZEROS)
+            result = new DifficultyTarget(difficulty, false, decodeCompact(difficulty));
+        else
+            result = new DifficultyTarget(difficulty, true, BigInteger.ZERO);
+        last = result;
+        return result;
+    }
+
+    /** Compact target for a difficulty of 'bits' leading zeros, fractions allowed (e.g. 20.5) **/
+    public static int toCompact(double bits) {
+        final double clamped = Math.max(1d, Math.min(255d, bits));
+        final double exponent = 256d - clamped;
+        final int whole = (int) Math.floor(exponent);
+        final BigDecimal fraction = new BigDecimal(Math.pow(2d, exponent - whole));
+        final BigInteger value = fraction.multiply(new BigDecimal(BigInteger.ONE.shiftLeft(whole))).toBigInteger();
+        return encodeCompact(value);
+    }
+
+    /** Number of leading zero bits (possibly fractional) a block difficulty stands for **/
+    public static double toBits(long difficulty) {
+        if (difficulty <= MAX_ZEROS)
+            return difficulty;
+        final int size = (int) ((difficulty >>> 24) & 0xff);
+        final int mantissa = (int) (difficulty & 0x7fffff);
+        if (mantissa == 0)
+            return MAX_ZEROS;
+        final double log2 = (Math.log(mantissa) / Math.log(2d)) + (8 * (size - 3));
+        return MAX_ZEROS - log2;
+    }
+
+    /**
+     * log2 of the expected number of hashes needed to meet a block difficulty. Same as {@link #toBits(long)} except for
+     * legacy zero counts, where only the first byte of every 4 is fully checked and the others only by their sign bit.
+     */
+    public static double workBits(long difficulty) {
+        if (difficulty > MAX_ZEROS)
+            return toBits(difficulty);
+        double bits = 0;
+        long remaining = difficulty;
+        for (int i=0; i<32 && remaining>0; i++) {
+            bits += ((i & 3) == 0) ? Math.min(remaining, 8) : 1;
+            remaining -= 8;
+        }
+        return bits;
+    }
+
+    public long getDifficulty() {
+        return difficulty;
+    }
+
+    /** Is the 32 byte hash at hash[offset] good enough **/
+    public boolean isMetBy(byte[] hash, int offset) {
+        if (legacy)
+            return legacyCheck(hash, offset, difficulty);
+
+        final long first = getLong(hash, offset);
+        // Most hashes fail here
+        final int zeros = Long.numberOfLeadingZeros(first);
+        if (zeros < targetZeros && zeros < 64)
+            return false;
+        int compare = Long.compareUnsigned(first, target[0]);
+        for (int i=1; compare==0 && i<4; i++)
+            compare = Long.compareUnsigned(getLong(hash, offset + (i * 8)), target[i]);
+        return compare <= 0;
+    }
+
+    /**
+     * The original check: bits were read with '(b >> position) & 1' using the absolute bit position, which for the
+     * first byte of every 4 reads its bits from least to most significant and for the other bytes reads the sign bit.
+     */
+    private static boolean legacyCheck(byte[] hash, int offset, long numberOfZeros) {
+        if (numberOfZeros <= 0 || numberOfZeros > MAX_ZEROS)
+            return false;
+        long remaining = numberOfZeros;
+        for (int i=0; i<32; i++) {
+            final int b = hash[offset + i];
+            if ((i & 3) == 0) {
+                if (remaining <= 8)
+                    return (b & ((1 << remaining) - 1)) == 0;
+                if ((b & 0xff) != 0)
+                    return false;
+            } else {
+                if (b < 0)
+                    return false;
+                if (remaining <= 8)
+                    return true;
+            }
+            remaining -= 8;
+        }
+        return false;
+    }
+
+    private static BigInteger decodeCompact(long compact) {
+        final int size = (int) ((compact >>> 24) & 0xff);
+        final BigInteger mantissa = BigInteger.valueOf(compact & 0x7fffff);
+        // a set sign bit is not a valid target
+        if ((compact & 0x800000) != 0 || (compact >>> 32) != 0)
+            return BigInteger.ZERO;
+        final BigInteger value = (size <= 3) ? mantissa.shiftRight(8 * (3 - size)) : mantissa.shiftLeft(8 * (size - 3));
+        return (value.bitLength() > 256) ? MAX_TARGET : value;
+    }
+
+    private static int encodeCompact(BigInteger value) {
+        int size = (value.bitLength() + 7) / 8;
+        long mantissa = (size <= 3) ? value.shiftLeft(8 * (3 - size)).longValue() : value.shiftRight(8 * (size - 3)).longValue();
+        if ((mantissa & 0x800000) != 0) {
+            mantissa >>= 8;
+            size++;
+        }
+        return (size << 24) | (int) mantissa;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i=0; i<8; i++)
+            result = (result << 8) | (bytes[offset + i] & 0xff);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("difficulty=").append(difficulty);
+        if (legacy)
+            builder.append(" legacy");
+        else
+            builder.append(" bits=").append(toBits(difficulty));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package it.unica.enrico.utils;
+
+import it.unica.enrico.interfaces.PowHasher;
+
+import java.nio.ByteBuffer;
+
+/** Reference hasher, rehashes the whole 'sha256 || nonce' buffer on every call. Use it on the thread which created it. **/
+public class DigestPowHasher implements PowHasher {
+
+    private final HashUtils.Sha256d hasher = HashUtils.getSha256d();
+
+    private ByteBuffer buffer;
+    private int length;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(byte[] sha256) {
+        length = sha256.length;
+        buffer = ByteBuffer.allocate(length+4);
+        buffer.put(sha256, 0, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void hash(int nonce, byte[] output, int offset) {
+        buffer.putInt(length, nonce);
+        hasher.digest(buffer.array(), 0, length+4, output, offset);
+    }
+}
@@ -1,10 +1,22 @@
 package it.unica.enrico.utils;
 
 import java.io.UnsupportedEncodingException;
+import java.security.DigestException;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public abstract class HashUtils {
 
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    // One hasher per thread, the provider lookup happens once per thread
+    private static final ThreadLocal<Sha256d> SHA256D = new ThreadLocal<Sha256d>() {
+        @Override
+        protected Sha256d initialValue() {
+            return new Sha256d();
+        }
+    };
+
     public static byte[] calculateSha256 (String text) {
         byte[] hash2;
         try {
@@ -16,22 +28,71 @@ public abstract class HashUtils {
     }
 
     static byte[] calculateSha256 (byte[] utf8Bytes) {
-        byte[] hash2;
-        try {
-            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            final byte[] hash1 = digest.digest(utf8Bytes);
-            hash2 = digest.digest(hash1);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        final byte[] hash2 = new byte[Sha256d.DIGEST_LENGTH];
+        getSha256d().digest(utf8Bytes, 0, utf8Bytes.length, hash2, 0);
         return hash2;
     }
 
+    /** The double SHA-256 hasher bound to the calling thread **/
+    public static Sha256d getSha256d () {
+        return SHA256D.get();
+    }
+
     public static String bytesToHex (byte[] bytes) {
         final StringBuilder result = new StringBuilder();
         for (byte byt : bytes)
             result.append(Integer.toString((byt & 0xff) + 0x100, 16).substring(1));
         return result.toString();
     }
-}
 
+    /** Write the lower case hex of 'bytes' into 'output' starting at 'offset', same encoding as bytesToHex. Returns the new offset. **/
+    public static int bytesToHex (byte[] bytes, byte[] output, int offset) {
+        for (byte byt : bytes) {
+            output[offset++] = HEX[(byt >> 4) & 0xf];
+            output[offset++] = HEX[byt & 0xf];
+        }
+        return offset;
+    }
+
+    /**
+     * Reusable SHA-256(SHA-256(x)) which digests into caller supplied buffers.
+     * <p>
+     * Not thread safe, each thread gets its own instance from {@link HashUtils#getSha256d()}.
+     */
+    public static final class Sha256d {
+
+        public static final int DIGEST_LENGTH = 32;
+
+        private final MessageDigest digest;
+        private final byte[] first = new byte[DIGEST_LENGTH];
+        private byte[] scratch = new byte[256];
+
+        private Sha256d() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /** Hash input[offset, offset+length) twice and write the 32 byte result at output[outputOffset] **/
+        public void digest(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+            try {
+                digest.update(input, offset, length);
+                digest.digest(first, 0, DIGEST_LENGTH);
+                digest.update(first, 0, DIGEST_LENGTH);
+                digest.digest(output, outputOffset, DIGEST_LENGTH);
+            } catch (DigestException e) {
+                digest.reset();
+                throw new RuntimeException(e);
+            }
+        }
+
+        /** A per thread work buffer of at least 'size' bytes, the content is not preserved between calls **/
+        public byte[] scratch(int size) {
+            if (scratch.length < size)
+                scratch = new byte[Math.max(size, scratch.length * 2)];
+            return scratch;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package it.unica.enrico.utils;
+
+import it.unica.enrico.interfaces.SignatureScheme;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * A signature scheme backed by the JDK's providers. Verifying is thread safe: every thread gets its own key factory
+ * and verifier, and the verifier stays initialized with the last key it verified, so consecutive messages from the
+ * same peer skip initVerify.
+ */
+public class JcaSignatureScheme implements SignatureScheme {
+
+    private final byte id;
+    private final String name;
+    private final String keyAlgorithm;
+    private final String signatureAlgorithm;
+    private final String provider;     // null for any provider
+    private final int keySize;         // 0 for the provider's default
+
+    private final ThreadLocal<KeyFactory> keyFactory = new ThreadLocal<KeyFactory>() {
+        @Override
+        protected KeyFactory initialValue() {
+            try {
+                return (provider != null) ? KeyFactory.getInstance(keyAlgorithm, provider) : KeyFactory.getInstance(keyAlgorithm);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+    private final ThreadLocal<Verifier> verifier = new ThreadLocal<Verifier>() {
+        @Override
+        protected Verifier initialValue() {
+            return new Verifier(newSignature());
+        }
+    };
+
+    /** Throws a RuntimeException if the JVM does not have the algorithms **/
+    public JcaSignatureScheme(byte id, String name, String keyAlgorithm, String signatureAlgorithm, String provider, int keySize) {
+        this.id = id;
+        this.name = name;
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.provider = provider;
+        this.keySize = keySize;
+        // fail now rather than on the first message
+        newSignature();
+        keyFactory.get();
+    }
+
+    private Signature newSignature() {
+        try {
+            return (provider != null) ? Signature.getInstance(signatureAlgorithm, provider) : Signature.getInstance(signatureAlgorithm);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public KeyPair generateKeyPair() {
+        try {
+            final KeyPairGenerator gen = (provider != null) ? KeyPairGenerator.getInstance(keyAlgorithm, provider) : KeyPairGenerator.getInstance(keyAlgorithm);
+            if (keySize > 0)
+                gen.initialize(keySize, new SecureRandom());
+            return gen.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Signature newSigner(PrivateKey privateKey) {
+        final Signature signer = newSignature();
+        try {
+            signer.initSign(privateKey);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        return signer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PrivateKey decodePrivateKey(byte[] encoded) {
+        try {
+            return keyFactory.get().generatePrivate(new PKCS8EncodedKeySpec(encoded));
+        } catch (Exception e) {
+            System.err.println("Could not decode "+name+" private key. "+e);
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PublicKey decodePublicKey(byte[] encoded) {
+        try {
+            return keyFactory.get().generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (Exception e) {
+            System.err.println("Could not decode "+name+" public key. "+e);
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean verify(PublicKey key, byte[] signature, byte[] bytes) {
+        final Verifier v = verifier.get();
+        try {
+            if (v.key != key) {
+                v.key = null;
+                v.signature.initVerify(key);
+                v.key = key;
+            }
+            v.signature.update(bytes);
+            return v.signature.verify(signature);
+        } catch (Exception e) {
+            // the verifier may be left half way through a message, initialize it again next time
+            v.key = null;
+            System.err.println("Could not decode msg. "+e);
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /** A thread's verifier, and the key it was last initialized with **/
+    private static final class Verifier {
+
+        private final Signature signature;
+        private PublicKey key = null;
+
+        private Verifier(Signature signature) {
+            this.signature = signature;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package it.unica.enrico.utils;
+
+import it.unica.enrico.interfaces.SignatureScheme;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded public keys by peer name, so a key is parsed once and not on every signature it verifies. An entry is
+ * only used while the peer still has the same encoded key, a peer announcing a new one gets it decoded again.
+ * Holds at most 'key_cache_size' peers, the least recently used is dropped first. Thread safe.
+ */
+public class KeyCache {
+
+    private static final int MAX_SIZE = Integer.getInteger("key_cache_size", 1024);
+
+    private final Map<String,Cached> keys = new LinkedHashMap<String,Cached>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Cached> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    /** The decoded form of 'encoded', the 'scheme' public key of 'name'. Null if it is not a valid key **/
+    public PublicKey get(String name, SignatureScheme scheme, byte[] encoded) {
+        synchronized (keys) {
+            final Cached entry = keys.get(name);
+            if (entry != null && entry.scheme == scheme && Arrays.equals(entry.encoded, encoded))
+                return entry.key;
+        }
+
+        // decode outside the lock, two threads may both decode a new key, they get equal keys
+        final PublicKey key = scheme.decodePublicKey(encoded);
+        if (key == null)
+            return null;
+        synchronized (keys) {
+            keys.put(name, new Cached(scheme, encoded.clone(), key));
+        }
+        return key;
+    }
+
+    /** Forget the key of 'name', e.g. because the peer announced a new one **/
+    public void invalidate(String name) {
+        synchronized (keys) {
+            keys.remove(name);
+        }
+    }
+
+    public int size() {
+        synchronized (keys) {
+            return keys.size();
+        }
+    }
+
+    private static final class Cached {
+
+        private final SignatureScheme scheme;
+        private final byte[] encoded;
+        private final PublicKey key;
+
+        private Cached(SignatureScheme scheme, byte[] encoded, PublicKey key) {
+            this.scheme = scheme;
+            this.encoded = encoded;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package it.unica.enrico.utils;
+
+import it.unica.enrico.interfaces.SignatureScheme;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * A key pair and its scheme, kept in a file so a node restarting from a block store signs with the same keys the
+ * stored blocks were signed with. The file is
+ * <pre>
+ *     [scheme id:1][public length:4][X.509 public key][private length:4][PKCS#8 private key]
+ * </pre>
+ * The private key is stored in the clear, in a file only its owner can read or write: it is created that way before
+ * the key is written, and saving fails if the file system can't restrict it.
+ */
+public class KeyFile {
+
+    private final SignatureScheme scheme;
+    private final KeyPair pair;
+
+    private KeyFile(SignatureScheme scheme, KeyPair pair) {
+        this.scheme = scheme;
+        this.pair = pair;
+    }
+
+    public SignatureScheme getScheme() {
+        return scheme;
+    }
+
+    public KeyPair getKeyPair() {
+        return pair;
+    }
+
+    /** New keys of 'scheme', not saved anywhere **/
+    public static KeyFile create(SignatureScheme scheme) {
+        return new KeyFile(scheme, scheme.generateKeyPair());
+    }
+
+    /**
+     * The keys saved in 'file', or new keys of 'scheme' saved to it when there is no such file. The keys in the file
+     * win over 'scheme'. Throws a RuntimeException if the file can't be read or written.
+     */
+    public static KeyFile loadOrCreate(File file, SignatureScheme scheme) {
+        try {
+            if (file.exists())
+                return load(file);
+            final KeyFile keys = create(scheme);
+            keys.save(file);
+            return keys;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not use the key file "+file, e);
+        }
+    }
+
+    private static KeyFile load(File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            final byte id = in.readByte();
+            final SignatureScheme scheme = KeyUtils.getScheme(id);
+            if (scheme == null)
+                throw new IOException("Unknown signature scheme="+id);
+            final byte[] bPublic = new byte[in.readInt()];
+            in.readFully(bPublic);
+            final byte[] bPrivate = new byte[in.readInt()];
+            in.readFully(bPrivate);
+
+            final PublicKey publicKey = scheme.decodePublicKey(bPublic);
+            final PrivateKey privateKey = scheme.decodePrivateKey(bPrivate);
+            if (publicKey == null || privateKey == null)
+                throw new IOException("Bad "+scheme.getName()+" keys");
+            return new KeyFile(scheme, new KeyPair(publicKey, privateKey));
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Write to a temporary file first, and rename it, so a crash never leaves half a key file behind **/
+    private void save(File file) throws IOException {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create "+directory);
+
+        final File tmp = createPrivate(new File(directory, file.getName()+".tmp"));
+        final FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            final DataOutputStream out = new DataOutputStream(stream);
+            final byte[] bPublic = pair.getPublic().getEncoded();
+            final byte[] bPrivate = pair.getPrivate().getEncoded();
+            out.writeByte(scheme.getId());
+            out.writeInt(bPublic.length);
+            out.write(bPublic);
+            out.writeInt(bPrivate.length);
+            out.write(bPrivate);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Cannot rename "+tmp+" to "+file);
+    }
+
+    /**
+     * Create 'file' empty and only readable and writable by its owner, before any key byte is written to it. Throws
+     * an IOException rather than leave the private key readable by others.
+     */
+    private static File createPrivate(File file) throws IOException {
+        final Path path = file.toPath();
+        Files.deleteIfExists(path);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            return file;
+        }
+
+        Files.createFile(path);
+        final boolean restricted = file.setReadable(false, false) && file.setWritable(false, false) && file.setExecutable(false, false)
+                                   && file.setReadable(true, true) && file.setWritable(true, true);
+        if (!restricted) {
+            file.delete();
+            throw new IOException("Cannot make "+file+" private to its owner");
+        }
+        return file;
+    }
+}
@@ -1,12 +1,58 @@
 package it.unica.enrico.utils;
 
-import java.security.KeyFactory;
-import java.security.PublicKey;
+import it.unica.enrico.interfaces.SignatureScheme;
+
 import java.security.Signature;
-import java.security.spec.X509EncodedKeySpec;
 
 public abstract class KeyUtils {
 
+    public static final byte DSA_ID = 1;
+    public static final byte ED25519_ID = 2;
+
+    // 512 bit DSA, what every node spoke before the schemes
+    public static final SignatureScheme DSA = new JcaSignatureScheme(DSA_ID, "dsa", "DSA", "SHA1withDSA", "SUN", 512);
+    // Ed25519 from the JDK (15 and later), null when this JVM has none
+    public static final SignatureScheme ED25519 = getEd25519();
+
+    private static final SignatureScheme[] SCHEMES = new SignatureScheme[256];
+    static {
+        SCHEMES[DSA_ID] = DSA;
+        if (ED25519 != null)
+            SCHEMES[ED25519_ID] = ED25519;
+    }
+
+    // Scheme of the keys this node creates: "dsa" or "ed25519"
+    private static final SignatureScheme DEFAULT = getDefault(System.getProperty("signature_scheme", "dsa"));
+
+    private static SignatureScheme getEd25519() {
+        try {
+            return new JcaSignatureScheme(ED25519_ID, "ed25519", "Ed25519", "Ed25519", null, 0);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static SignatureScheme getDefault(String name) {
+        if (name.equalsIgnoreCase("ed25519")) {
+            if (ED25519 != null)
+                return ED25519;
+            System.err.println("Ed25519 is not available in this JVM, using DSA.");
+        } else if (!name.equalsIgnoreCase("dsa")) {
+            System.err.println("Unknown signature scheme '"+name+"', using DSA.");
+        }
+        return DSA;
+    }
+
+    /** The scheme of the keys this node creates **/
+    public static final SignatureScheme getDefaultScheme() {
+        return DEFAULT;
+    }
+
+    /** The scheme with this id, null if this node does not know it **/
+    public static final SignatureScheme getScheme(byte id) {
+        return SCHEMES[id & 0xff];
+    }
+
     public static final byte[] signMsg(Signature enc, byte[] bytes) {
         byte[] signed = null;
         try {
@@ -17,17 +63,4 @@ public abstract class KeyUtils {
         }
         return signed;
     }
-
-    public static final boolean verifyMsg(KeyFactory keyFactory, Signature dec, byte[] publicKey, byte[] signature, byte[] bytes) {
-        boolean verified = false;
-        try {
-            PublicKey key = keyFactory.generatePublic(new X509EncodedKeySpec(publicKey));
-            dec.initVerify(key);
-            dec.update(bytes);
-            verified = dec.verify(signature);
-        } catch (Exception e) {
-            System.err.println("Could not decode msg. "+e);
-        }
-        return verified;
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,229 @@
+package it.unica.enrico.utils;
+
+import it.unica.enrico.interfaces.PowHasher;
+
+/**
+ * Hasher for the mining loop: only the 4 nonce bytes of 'sha256 || nonce' change between attempts, so the SHA-256
+ * state is computed once per block for every 64 byte chunk before the nonce, and for the rounds of the last chunk
+ * which only read words preceding the nonce. The same goes for the message schedule: the words before the first one
+ * which reads the nonce are expanded once, and the second SHA-256 folds in its constant padding words. Each attempt
+ * then expands the rest of the schedules, finishes the remaining rounds and the second SHA-256.
+ * <p>
+ * The output is identical to {@link DigestPowHasher}. Instances are not thread safe.
+ */
+public class MidstatePowHasher implements PowHasher {
+
+    private static final int[] IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    // sigma0 and sigma1 of the constant words of the second SHA-256 (padding of a 32 byte message)
+    private static final int S0_PADDING = sigma0(0x80000000);
+    private static final int S0_LENGTH = sigma0(256);
+    private static final int S1_LENGTH = sigma1(256);
+
+    private final int[] midstate = new int[8];  // chaining value before the chunk holding the nonce
+    private final int[] partial = new int[8];   // working variables after the rounds which precede the nonce
+    // schedules of the last one or two padded chunks, the words which don't depend on the nonce are expanded by init
+    private final int[][] tail = new int[2][64];
+    private final int[] tailFrom = new int[2];  // first word of each schedule which depends on the nonce
+    private final int[] second = new int[64];
+    private final int[] w = new int[64];
+    private final int[] state = new int[8];
+    private final int[] first = new int[8];
+    private final int[] work = new int[8];
+
+    private int nonceOffset;                    // byte offset of the nonce inside 'tail'
+    private int firstRound;                     // first round which reads a nonce word
+    private int tailChunks;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(byte[] sha256) {
+        final int length = sha256.length;
+        final int constantChunks = length / 64;
+
+        // chunks before the one holding the nonce never change
+        System.arraycopy(IV, 0, midstate, 0, 8);
+        for (int c=0; c<constantChunks; c++) {
+            for (int i=0; i<16; i++)
+                w[i] = getInt(sha256, (c*64) + (i*4));
+            compress(midstate, w);
+        }
+
+        // remaining prefix bytes + nonce + SHA-256 padding
+        final byte[] bytes = new byte[128];
+        final int remaining = length - (constantChunks * 64);
+        System.arraycopy(sha256, constantChunks * 64, bytes, 0, remaining);
+        nonceOffset = remaining;
+        bytes[remaining + 4] = (byte) 0x80;
+        tailChunks = (remaining + 4 + 1 + 8 <= 64) ? 1 : 2;
+        final long bits = (length + 4) * 8L;
+        final int end = tailChunks * 64;
+        for (int i=0; i<8; i++)
+            bytes[end - 1 - i] = (byte) (bits >>> (i * 8));
+        for (int c=0; c<tailChunks; c++) {
+            for (int i=0; i<16; i++)
+                tail[c][i] = getInt(bytes, (c*64) + (i*4));
+            expand(tail[c]);
+            tailFrom[c] = 64;
+        }
+        for (int i=nonceOffset; i<nonceOffset+4; i++)
+            tailFrom[i / 64] = Math.min(tailFrom[i / 64], firstReader((i % 64) / 4));
+
+        // padding of the 32 byte digest hashed by the second SHA-256
+        second[8] = 0x80000000;
+        second[15] = 256;
+
+        // rounds which only read words before the nonce
+        firstRound = nonceOffset / 4;
+        System.arraycopy(midstate, 0, partial, 0, 8);
+        rounds(partial, tail[0], 0, firstRound);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void hash(int nonce, byte[] output, int offset) {
+        for (int i=0; i<4; i++) {
+            final int index = nonceOffset + i;
+            setByte(tail[index / 64], index % 64, (byte) (nonce >>> (24 - (i * 8))));
+        }
+
+        // first SHA-256, resume the chunk holding the nonce
+        final int[] w0 = tail[0];
+        expand(w0, tailFrom[0]);
+        System.arraycopy(partial, 0, state, 0, 8);
+        rounds(state, w0, firstRound, 64);
+        for (int i=0; i<8; i++)
+            first[i] = state[i] + midstate[i];
+        if (tailChunks == 2) {
+            final int[] w1 = tail[1];
+            expand(w1, tailFrom[1]);
+            System.arraycopy(first, 0, state, 0, 8);
+            rounds(state, w1, 0, 64);
+            for (int i=0; i<8; i++)
+                first[i] += state[i];
+        }
+
+        // second SHA-256 of the 32 byte digest, a single chunk
+        System.arraycopy(first, 0, second, 0, 8);
+        expandSecond(second);
+        System.arraycopy(IV, 0, state, 0, 8);
+        rounds(state, second, 0, 64);
+        for (int i=0; i<8; i++)
+            state[i] += IV[i];
+
+        for (int i=0; i<8; i++) {
+            final int v = state[i];
+            output[offset++] = (byte) (v >>> 24);
+            output[offset++] = (byte) (v >>> 16);
+            output[offset++] = (byte) (v >>> 8);
+            output[offset++] = (byte) v;
+        }
+    }
+
+    /** Process one chunk (w[0..15]) into the chaining value 'h' **/
+    private void compress(int[] h, int[] w) {
+        expand(w);
+        final int[] s = work;
+        System.arraycopy(h, 0, s, 0, 8);
+        rounds(s, w, 0, 64);
+        for (int i=0; i<8; i++)
+            h[i] += s[i];
+    }
+
+    private static void expand(int[] w) {
+        expand(w, 16);
+    }
+
+    /** First word of the schedule which reads w[word]: w[t] reads w[t-16], w[t-15], w[t-7] and w[t-2] **/
+    private static int firstReader(int word) {
+        for (int t=16; t<64; t++) {
+            if (t-16 == word || t-15 == word || t-7 == word || t-2 == word)
+                return t;
+        }
+        return 64;
+    }
+
+    /** Expand the words from 'from' on again, the ones before are still valid **/
+    private static void expand(int[] w, int from) {
+        for (int t=from; t<64; t++)
+            w[t] = w[t-16] + sigma0(w[t-15]) + w[t-7] + sigma1(w[t-2]);
+    }
+
+    /**
+     * Expand the schedule of the second SHA-256, where only w[0..7] (the first digest) change: w[8] is the padding
+     * bit, w[9..14] are zero and w[15] is the length, so their terms in w[16..31] are constants or drop out.
+     */
+    private static void expandSecond(int[] w) {
+        w[16] = w[0] + sigma0(w[1]);
+        w[17] = w[1] + sigma0(w[2]) + S1_LENGTH;
+        w[18] = w[2] + sigma0(w[3]) + sigma1(w[16]);
+        w[19] = w[3] + sigma0(w[4]) + sigma1(w[17]);
+        w[20] = w[4] + sigma0(w[5]) + sigma1(w[18]);
+        w[21] = w[5] + sigma0(w[6]) + sigma1(w[19]);
+        w[22] = w[6] + sigma0(w[7]) + 256 + sigma1(w[20]);
+        w[23] = w[7] + S0_PADDING + w[16] + sigma1(w[21]);
+        w[24] = 0x80000000 + w[17] + sigma1(w[22]);
+        for (int t=25; t<30; t++)
+            w[t] = w[t-7] + sigma1(w[t-2]);
+        w[30] = S0_LENGTH + w[23] + sigma1(w[28]);
+        w[31] = 256 + sigma0(w[16]) + w[24] + sigma1(w[29]);
+        expand(w, 32);
+    }
+
+    private static int sigma0(int x) {
+        return Integer.rotateRight(x, 7) ^ Integer.rotateRight(x, 18) ^ (x >>> 3);
+    }
+
+    private static int sigma1(int x) {
+        return Integer.rotateRight(x, 17) ^ Integer.rotateRight(x, 19) ^ (x >>> 10);
+    }
+
+    private static void rounds(int[] s, int[] w, int from, int to) {
+        int a = s[0], b = s[1], c = s[2], d = s[3], e = s[4], f = s[5], g = s[6], h = s[7];
+        for (int t=from; t<to; t++) {
+            final int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            final int ch = (e & f) ^ (~e & g);
+            final int t1 = h + s1 + ch + K[t] + w[t];
+            final int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            final int maj = (a & b) ^ (a & c) ^ (b & c);
+            final int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        s[0] = a; s[1] = b; s[2] = c; s[3] = d; s[4] = e; s[5] = f; s[6] = g; s[7] = h;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset+1] & 0xff) << 16) |
+               ((bytes[offset+2] & 0xff) << 8) | (bytes[offset+3] & 0xff);
+    }
+
+    private static void setByte(int[] words, int index, byte b) {
+        final int shift = 24 - ((index & 3) * 8);
+        final int word = index >>> 2;
+        words[word] = (words[word] & ~(0xff << shift)) | ((b & 0xff) << shift);
+    }
+}
@@ -1,12 +1,40 @@
 package it.unica.enrico.utils;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.unica.enrico.interfaces.PowHasher;
 import it.unica.enrico.networking.Peer;
 public class ProofOfWork {
 
-    private static final byte getBit(int ID, int position) {
-        return (byte) ((ID >> position) & (byte)1);
-    }
+    private static final boolean DEBUG = Boolean.getBoolean("debug");
+    // Hasher used while mining: "digest", "midstate" or "auto" (time both once and keep the faster one)
+    private static final String HASHER = System.getProperty("pow_hasher", "auto");
+    private static final int CALIBRATION_HASHES = 50000;
+    // Nonces per header, the 32 bit nonce is treated as unsigned
+    private static final long MAX_NONCE = 0xffffffffL;
+    private static volatile Boolean useMidstate = null;
+
+    // Number of workers used to search the nonce space, defaults to one per core
+    private static final int MINING_THREADS = Math.max(1, Integer.getInteger("mining_threads", Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService MINERS = Executors.newFixedThreadPool(MINING_THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "miner-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    });
 
     /**
      * Given the sha256 hash, what number can we append to the hash which'll create a hash
@@ -18,87 +46,151 @@ public class ProofOfWork {
      * solution = 0000fedb24e31adb71559d43a9a3ddc8be7606fa6befe3260b3eee2cf2aeb642
      * output = 21080
      *
+     * The result is an extended nonce: the low 32 bits are appended to the header, the high 31 bits are the
+     * extra nonce used to derive the header (see {@link #getHeader(byte[], int)}). When all 2^32 nonces of a
+     * header fail the extra nonce is increased. Returns Long.MIN_VALUE if the task was cancelled.
+     **/
+    public static long solve(Peer.MiningTask task, byte[] sha256, long numberOfZerosInPrefix) {
+        return solve(task, sha256, numberOfZerosInPrefix, MINING_THREADS);
+    }
+
+    /**
+     * Same as {@link #solve(Peer.MiningTask, byte[], long)} but splits the nonce space across 'threads' workers,
+     * worker i tries the nonces i, i+threads, i+2*threads, ... The first worker to find a solution stops the others.
      **/
-    public static int solve(Peer.MiningTask task, byte[] sha256, long numberOfZerosInPrefix) {
-        final int length = sha256.length;
-
-        final ByteBuffer buffer = ByteBuffer.allocate(length+4);
-        buffer.put(sha256, 0, length);
-
-        int x = 0;
-        while (task.run && x < Integer.MAX_VALUE) {
-            // append x
-            buffer.putInt(length, x);
-            // calculate new hash
-            final byte[] result = HashUtils.calculateSha256(buffer.array());
-            // wrap in buffer for easier processing
-            final ByteBuffer bb = ByteBuffer.wrap(result);
-
-            boolean wrong = false;
-            boolean done = false;
-            int numOfZeros = 0;
-            for (int i=0; i<bb.limit(); i++) {
-                final byte b = bb.get(i);
-                for (int j=0; j<8; j++) {
-                    final byte a = getBit(b,(i*8)+j);
-                    if (a == 0) {
-                        numOfZeros++;
-                    } else {
-                        wrong = true;
-                        break;
-                    }
-                    if (numOfZeros == numberOfZerosInPrefix) {
-                        done = true;
-                        break;
-                    }
+    public static long solve(final Peer.MiningTask task, final byte[] sha256, final long numberOfZerosInPrefix, int threads) {
+        if (threads <= 1)
+            return search(task, new AtomicBoolean(false), sha256, numberOfZerosInPrefix, 0, 1);
+
+        final AtomicBoolean found = new AtomicBoolean(false);
+        final List<Future<Long>> workers = new ArrayList<Future<Long>>(threads);
+        for (int i=0; i<threads; i++) {
+            final int start = i;
+            final int step = threads;
+            workers.add(MINERS.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return search(task, found, sha256, numberOfZerosInPrefix, start, step);
                 }
-                if (done || wrong)
-                    break;
+            }));
+        }
+
+        long nonce = Long.MIN_VALUE;
+        try {
+            for (Future<Long> worker : workers) {
+                final long result = worker.get();
+                if (result >= 0 && nonce < 0)
+                    nonce = result;
             }
-            if (done)
-                break;
-            x++;
+        } catch (InterruptedException e) {
+            found.set(true);
+            Thread.currentThread().interrupt();
+            return Long.MIN_VALUE;
+        } catch (Exception e) {
+            found.set(true);
+            throw new RuntimeException(e);
         }
         if (!task.run)
-            return Integer.MIN_VALUE;
-        return x;
+            return Long.MIN_VALUE;
+        return nonce;
     }
 
-    /** Does the given nonce create a hash which starts with 'numberOfZerosInPrefix' number of zeros **/
-    public static final boolean check(byte[] sha256, int nonce, long numberOfZerosInPrefix) {
-        final int length = sha256.length;
+    /** Try the nonces start, start+step, ... of every extra nonce until one works, 'found' is set or the task is cancelled **/
+    private static long search(Peer.MiningTask task, AtomicBoolean found, byte[] sha256, long numberOfZerosInPrefix, int start, int step) {
+        final DifficultyTarget target = DifficultyTarget.of(numberOfZerosInPrefix);
+        final PowHasher hasher = newHasher();
+        final byte[] result = new byte[HashUtils.Sha256d.DIGEST_LENGTH];
 
-        final ByteBuffer buffer = ByteBuffer.allocate(length+4);
-        buffer.put(sha256, 0, length);
-
-        // append nonce
-        buffer.putInt(length, nonce);
-        // calculate new hash
-        final byte[] result = HashUtils.calculateSha256(buffer.array());
-        // wrap in buffer for easier processing
-        final ByteBuffer bb = ByteBuffer.wrap(result);
-
-        boolean incorrect = false;
-        boolean correct = false;
-        int numOfZeros = 0;
-        for (int i=0; i<bb.limit(); i++) {
-            final byte b = bb.get(i);
-            for (int j=0; j<8; j++) {
-                final byte a = getBit(b,(i*8)+j);
-                if (a == 0) {
-                    numOfZeros++;
-                } else {
-                    incorrect = true;
-                    break;
-                }
-                if (numOfZeros == numberOfZerosInPrefix) {
-                    correct = true;
-                    break;
+        for (int extraNonce=0; extraNonce>=0; extraNonce++) {
+            hasher.init(getHeader(sha256, extraNonce));
+            for (long x=start; x<=MAX_NONCE; x+=step) {
+                if (!task.run || found.get())
+                    return Long.MIN_VALUE;
+                // calculate hash of header || x
+                hasher.hash((int) x, result, 0);
+                if (target.isMetBy(result, 0)) {
+                    found.set(true);
+                    return (((long) extraNonce) << 32) | x;
                 }
             }
-            if (correct || incorrect)
-                break;
+            if (DEBUG)
+                System.out.println("Nonce space exhausted, rolling extra nonce to "+(extraNonce+1));
+        }
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * Header the nonce is appended to. Extra nonce 0 is 'sha256' itself (the block's PoW hash,
+     * sha256d(hash || timestamp)), otherwise it's sha256d(sha256 || extraNonce). Nonces mined before the 8 byte
+     * nonce and the block timestamp are not valid any more, those blocks don't even parse.
+     **/
+    public static byte[] getHeader(byte[] sha256, int extraNonce) {
+        if (extraNonce == 0)
+            return sha256;
+        final byte[] input = new byte[sha256.length + 4];
+        final ByteBuffer buffer = ByteBuffer.wrap(input);
+        buffer.put(sha256);
+        buffer.putInt(extraNonce);
+        final byte[] header = new byte[HashUtils.Sha256d.DIGEST_LENGTH];
+        HashUtils.getSha256d().digest(input, 0, input.length, header, 0);
+        return header;
+    }
+
+    /** A new hasher for the calling thread, as configured by the 'pow_hasher' property **/
+    public static PowHasher newHasher() {
+        if ("midstate".equals(HASHER))
+            return new MidstatePowHasher();
+        if ("digest".equals(HASHER))
+            return new DigestPowHasher();
+
+        Boolean midstate = useMidstate;
+        if (midstate == null) {
+            // The JDK digest may be backed by SHA instructions, in which case it beats the midstate in plain java
+            final byte[] sample = new byte[HashUtils.Sha256d.DIGEST_LENGTH];
+            long digestTime = 0;
+            long midstateTime = 0;
+            for (int round=0; round<2; round++) {
+                digestTime = time(new DigestPowHasher(), sample);
+                midstateTime = time(new MidstatePowHasher(), sample);
+            }
+            midstate = (midstateTime < digestTime);
+            useMidstate = midstate;
+            if (DEBUG)
+                System.out.println("PoW hasher calibrated. digest="+digestTime+"ns midstate="+midstateTime+"ns");
         }
-        return correct;
+        return (midstate ? new MidstatePowHasher() : new DigestPowHasher());
+    }
+
+    private static long time(PowHasher hasher, byte[] sha256) {
+        final byte[] result = new byte[HashUtils.Sha256d.DIGEST_LENGTH];
+        hasher.init(sha256);
+        final long start = System.nanoTime();
+        for (int i=0; i<CALIBRATION_HASHES; i++)
+            hasher.hash(i, result, 0);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Does the given nonce create a hash which meets the difficulty 'numberOfZerosInPrefix',
+     * either a number of zeros or a compact target (see {@link DifficultyTarget})
+     **/
+    public static final boolean check(byte[] sha256, long nonce, long numberOfZerosInPrefix) {
+        if (nonce < 0)
+            return false;
+        final byte[] header = getHeader(sha256, (int) (nonce >>> 32));
+        final int length = header.length;
+
+        final HashUtils.Sha256d hasher = HashUtils.getSha256d();
+
+        // header || nonce, followed by room for the result
+        final byte[] work = hasher.scratch(length + 4 + HashUtils.Sha256d.DIGEST_LENGTH);
+        final ByteBuffer buffer = ByteBuffer.wrap(work);
+        buffer.put(header, 0, length);
+
+        // append nonce
+        buffer.putInt(length, (int) nonce);
+        // calculate new hash
+        hasher.digest(work, 0, length+4, work, length+4);
+        return DifficultyTarget.of(numberOfZerosInPrefix).isMetBy(work, length+4);
     }
-}
\ No newline at end of file
+}
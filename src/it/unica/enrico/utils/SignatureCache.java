@@ -0,0 +1,117 @@
+package it.unica.enrico.utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signatures already proven valid, so a transaction seen again (acked, spent as an input, replayed by a Rehash or
+ * a Resend) costs a hash lookup instead of a verify. An entry is SHA-256(key || signature || SHA-256(message)),
+ * whether a signature is valid only depends on those, so one cache can be shared by every wallet of the JVM.
+ * Failed verifications are not cached. Holds at most 'signature_cache_size' entries, the oldest is dropped first.
+ * Thread safe.
+ */
+public class SignatureCache {
+
+    private static final int MAX_SIZE = Integer.getInteger("signature_cache_size", 64*1024);
+    private static final SignatureCache SHARED = new SignatureCache(MAX_SIZE);
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private final int maxSize;
+    private final Set<ByteBuffer> verified = ConcurrentHashMap.<ByteBuffer>newKeySet();
+    // insertion order, for eviction
+    private final Queue<ByteBuffer> order = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SignatureCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /** The cache shared by the wallets **/
+    public static SignatureCache getShared() {
+        return SHARED;
+    }
+
+    /** The entry of 'signature' of 'bytes' by the owner of the encoded 'publicKey' **/
+    public static ByteBuffer getKey(byte[] publicKey, byte[] signature, byte[] bytes) {
+        final MessageDigest digest = SHA256.get();
+        final byte[] message = digest.digest(bytes);
+        // lengths first, so no two (key, signature) pairs hash the same bytes
+        digest.update(ByteBuffer.allocate(8).putInt(publicKey.length).putInt(signature.length).array());
+        digest.update(publicKey);
+        digest.update(signature);
+        digest.update(message);
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    /** True if the signature with this entry was verified before **/
+    public boolean contains(ByteBuffer key) {
+        if (verified.contains(key)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /** Remember a signature which verified **/
+    public void add(ByteBuffer key) {
+        if (!verified.add(key))
+            return;
+        order.add(key);
+        while (verified.size() > maxSize) {
+            final ByteBuffer oldest = order.poll();
+            if (oldest == null)
+                break;
+            verified.remove(oldest);
+        }
+    }
+
+    public int size() {
+        return verified.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Fraction of the lookups which were hits, 0 before the first one **/
+    public double getHitRate() {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return (total == 0) ? 0d : ((double) h / total);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("size=").append(size());
+        builder.append(" hits=").append(getHits());
+        builder.append(" misses=").append(getMisses());
+        builder.append(" hitRate=").append(String.format("%.3f", getHitRate()));
+        return builder.toString();
+    }
+}
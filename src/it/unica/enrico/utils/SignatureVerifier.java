@@ -0,0 +1,68 @@
+package it.unica.enrico.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a batch of signature checks across a pool of 'verify_threads' workers (one per core by default, a virtual
+ * thread per check when they are enabled, see {@link Threads}). The first check which fails ends the batch: the
+ * checks still waiting are cancelled and its status is returned.
+ */
+public class SignatureVerifier {
+
+    private static final int THREADS = Math.max(1, Integer.getInteger("verify_threads", Runtime.getRuntime().availableProcessors()));
+    // smaller batches are checked on the calling thread, handing them off costs more than it saves
+    private static final int MIN_PARALLEL = Integer.getInteger("verify_min_parallel", 4);
+    private static final ExecutorService VERIFIERS = Threads.newExecutor("verifier-", THREADS);
+
+    private SignatureVerifier() { }
+
+    /** SUCCESS if every check succeeds, else the status of the first one found to fail **/
+    public static Constants.Status verifyAll(List<? extends Callable<Constants.Status>> checks) {
+        if (THREADS == 1 || checks.size() < MIN_PARALLEL)
+            return verifyInline(checks);
+
+        final CompletionService<Constants.Status> completion = new ExecutorCompletionService<Constants.Status>(VERIFIERS);
+        final List<Future<Constants.Status>> futures = new ArrayList<Future<Constants.Status>>(checks.size());
+        try {
+            for (Callable<Constants.Status> check : checks)
+                futures.add(completion.submit(check));
+            for (int i=0; i<checks.size(); i++) {
+                final Constants.Status status = completion.take().get();
+                if (status != Constants.Status.SUCCESS)
+                    return status;
+            }
+            return Constants.Status.SUCCESS;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Constants.Status.UNKNOWN;
+        } catch (ExecutionException e) {
+            System.err.println("Signature check failed. "+e.getCause());
+            return Constants.Status.BAD_SIGNATURE;
+        } finally {
+            for (Future<Constants.Status> future : futures)
+                future.cancel(false);
+        }
+    }
+
+    private static Constants.Status verifyInline(List<? extends Callable<Constants.Status>> checks) {
+        for (Callable<Constants.Status> check : checks) {
+            final Constants.Status status;
+            try {
+                status = check.call();
+            } catch (Exception e) {
+                System.err.println("Signature check failed. "+e);
+                return Constants.Status.BAD_SIGNATURE;
+            }
+            if (status != Constants.Status.SUCCESS)
+                return status;
+        }
+        return Constants.Status.SUCCESS;
+    }
+}
@@ -0,0 +1,86 @@
+package it.unica.enrico.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads of the peers. With 'virtual_threads' set, and a JVM which has them, they are virtual threads,
+ * so thousands of peers and message handlers fit in one JVM. Else, or when the JVM has none, platform threads.
+ * Virtual threads are looked up by reflection so the code still builds and runs on the older JVMs.
+ */
+public class Threads {
+
+    private static final boolean VIRTUAL_REQUESTED = Boolean.getBoolean("virtual_threads");
+    private static final Method OF_VIRTUAL = getOfVirtual();
+    private static final boolean VIRTUAL = (OF_VIRTUAL != null);
+
+    private Threads() { }
+
+    private static Method getOfVirtual() {
+        if (!VIRTUAL_REQUESTED)
+            return null;
+        try {
+            return Thread.class.getMethod("ofVirtual");
+        } catch (NoSuchMethodException e) {
+            System.err.println("Virtual threads are not available in this JVM, using platform threads.");
+            return null;
+        }
+    }
+
+    /** True if the threads made here are virtual **/
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /** Factory of threads named prefix0, prefix1, ... Platform threads are daemons when 'daemon' is set **/
+    public static ThreadFactory newFactory(final String prefix, final boolean daemon) {
+        if (VIRTUAL) {
+            try {
+                // Thread.ofVirtual().name(prefix, 0).factory()
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = Class.forName("java.lang.Thread$Builder").getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+                return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Could not create a virtual thread factory, using platform threads. "+e);
+            }
+        }
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, prefix + count.getAndIncrement());
+                t.setDaemon(daemon);
+                return t;
+            }
+        };
+    }
+
+    /** Start a thread named 'name', virtual if they are enabled **/
+    public static Thread start(Runnable runnable, String name) {
+        final Thread t = newFactory(name, false).newThread(runnable);
+        t.setName(name);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Executor for short tasks running at most 'threads' of them at once, the others wait in its queue. Virtual
+     * threads when they are enabled, started as needed and ended after a minute idle, else platform daemon threads.
+     * Shutting it down and awaiting its termination joins every task it started.
+     */
+    public static ExecutorService newExecutor(String prefix, int threads) {
+        if (VIRTUAL) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), newFactory(prefix, true));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+        return Executors.newFixedThreadPool(threads, newFactory(prefix, true));
+    }
+}